@@ -42,6 +42,7 @@ MOD_DIR=${BLACKICE_DIR}/mod
 OUT_DIR_BASE="${BLACKICE_DIR}/out"
 OUT_DIR="${OUT_DIR_BASE}/${BLACKICE_VERSION}"
 OUT_EXTRAAPPS="${OUT_DIR_BASE}/${BLACKICE_VERSION}-extraapps"
+MOD_CACHE="${OUT_DIR_BASE}/modcache"
 
 # RELEASE_DIR gets the final files built from the stuff in OUT_DIR
 RELEASE_DIR_BASE=$OUT_DIR_BASE/release
@@ -215,31 +216,11 @@ for i in `find $OUT_DIR/ -name '*.append'`; do
 done
 
 # Mod files
+# Different apks are modded in parallel, unchanged ones (same apk, mods
+# and tools) come from the cache in $MOD_CACHE
 if [ "$MODAPKS" = "1" ]; then
-   MODS=`for i in $MOD_DIR/*.apk; do echo $i ; done | sort -n`
-   for i in $MODS ; do
-     BASE=`basename "$i" .apk`
-     if [ -f "mod/${BASE}.exclude" ]; then
-       continue ; # dirty hack to exclude framework-res modding
-     fi
-     # Read specific options
-     if [ -f "mod/${BASE}.options" ]; then
-       . mod/${BASE}.options
-       export APKMOD_METHOD=$method
-       export APKMOD_PATCH=$patch
-     else
-       unset APKMOD_METHOD
-       unset APKMOD_PATCH
-     fi
-
-     # We allow several mods for 1 apk
-     BASE=${BASE%\.*}
-     ORIG=`find $OUT_DIR/system -name "$BASE.apk"`
-     if [ -f "$ORIG" ]; then
-       ShowMessage "  [MOD]       $BASE.apk ($i)"
-       ${TOOLS_DIR}/apkmod.sh $ORIG $i || ExitError "Cannot mod $ORIG. See $LOG for details"
-     fi
-   done
+   BuildTool ModStage $MOD_DIR $OUT_DIR/system $MOD_CACHE ${TOOLS_DIR}/apkmod.sh | tee -a $LOG
+   [ "${PIPESTATUS[0]}" = "0" ] || ExitError "Cannot mod apks. See $LOG for details"
 fi
 
 # Bootanimation
@@ -290,18 +271,8 @@ for i in src/*/bin/*.apk; do
    cp $i $OUT_DIR/system/app/
 done
 
-# Move possible packages to extraapps
-for i in $EXTRAAPPS_APK; do
-   # It could have a :* part with destination
-   SRC=${i%\:*}
-   DST=${i##*:}
-   DST=$OUT_EXTRAAPPS/$DST
-   if [ -f $OUT_DIR/$SRC ]; then
-     mkdir -p `dirname $DST`
-     ShowMessage "  [MV]       " $i " => $DST"
-     mv $OUT_DIR/$SRC $DST
-   fi
-done
+# Packages listed in EXTRAAPPS_APK go to extraapps instead of the rom,
+# RomAssembler takes care of that when zipping
 
 # zipalign
 if [ "$ZIPALIGN" = "1" ]; then
@@ -318,19 +289,6 @@ fi
 ShowMessage "* Cleaning up..."
 ${TOOLS_DIR}/clean.sh $OUT_DIR $LOG
 
-# zip and sign
-ShowMessage "  [ZIP]       $RELEASE_ZIP"
-cd $OUT_DIR
-zip $ZIPFLAGS $RELEASE_ZIP \
-  $ROM_DIR_LIST >> $LOG
-
-if [ "$SIGN_ZIP" = "1" ]; then
-  ShowMessage "  [SIGN]      $RELEASE_SIGNED"
-  ${TOOLS_DIR}/sign.sh $RELEASE_ZIP $RELEASE_SIGNED >> $LOG
-fi
-
-cd - &>/dev/null
-
 # Extraapps
 if [ "$EXTRA_APPS" = "1" ] ; then
   ShowMessage "  [CP]        $EXTRAAPPS_DIR"
@@ -342,14 +300,25 @@ if [ "$EXTRA_APPS" = "1" ] ; then
     > updater-script.new
   mv updater-script.new updater-script
   cd - &>/dev/null
+fi
 
+# zip (rom and extraapps in one run) and sign, md5sums.txt written along
+# for the zips and the signed ones (<zip>-signed.zip)
+rm -f $RELEASE_DIR/md5sums.txt
+SIGN_ARGS=""
+ShowMessage "  [ZIP]       $RELEASE_ZIP"
+if [ "$SIGN_ZIP" = "1" ]; then
+  SIGN_ARGS="-s ${TOOLS_DIR}"
+  ShowMessage "  [SIGN]      $RELEASE_SIGNED"
+fi
+if [ "$EXTRA_APPS" = "1" ] ; then
   ShowMessage "  [ZIP]       $RELEASE_EXTRAAPPS_ZIP"
-  cd $OUT_EXTRAAPPS
-  zip $ZIPFLAGS $RELEASE_EXTRAAPPS_ZIP . >> $LOG
-
   if [ "$SIGN_ZIP" = "1" ]; then
     ShowMessage "  [SIGN]      $RELEASE_EXTRAAPPS_SIGNED"
-    ${TOOLS_DIR}/sign.sh $RELEASE_EXTRAAPPS_ZIP $RELEASE_EXTRAAPPS_SIGNED_ >> $LOG
   fi
+  BuildTool RomAssembler -c ${BLACKICE_DIR}/conf/blackice.ini $SIGN_ARGS $OUT_DIR $RELEASE_ZIP \
+    $OUT_EXTRAAPPS $RELEASE_EXTRAAPPS_ZIP >> $LOG || ExitError "Cannot zip $RELEASE_ZIP. See $LOG for details"
+else
+  BuildTool RomAssembler -c ${BLACKICE_DIR}/conf/blackice.ini $SIGN_ARGS $OUT_DIR $RELEASE_ZIP \
+    >> $LOG || ExitError "Cannot zip $RELEASE_ZIP. See $LOG for details"
 fi
-cd - &>/dev/null
@@ -6,3 +6,12 @@ tar -czvf icetool.tgz system/
 grep ICETOOL_VERSION system/bin/icetool | head -n 1 | \
       awk '{ print $1 }' | cut -c17- | sed 's/\"//g' \
     > icetool.version
+
+# Per file manifest and files by md5, for the app's UpgradeEngine
+rm -rf icetool-files && mkdir -p icetool-files
+echo "version `cat icetool.version`" > icetool.manifest
+for f in `find system -type f | sort`; do
+  MD5=`md5sum $f | awk '{ print $1 }'`
+  echo "$MD5 `stat -c '%s %a' $f` $f" >> icetool.manifest
+  cp -p $f icetool-files/$MD5
+done
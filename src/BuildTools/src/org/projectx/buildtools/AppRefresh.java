@@ -0,0 +1,271 @@
+package org.projectx.buildtools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Finds the apps of the phone that differ from the local apks (the ones
+// to upload to the server), as refreshapps.sh did with three adb shell
+// calls, a pull and a diff per apk. Here the phone is asked once for the
+// size and md5 of all its apks, local md5s come from an index kept next
+// to the apks (only changed files are hashed again), and only the apks
+// that differ are pulled, several at a time.
+//
+//   AppRefresh [-j <pulls>] [-r <remote dir>] <local dir> <download dir>
+//
+// Apks are matched by name without the version suffix, as the script
+// did (com.foo-1.apk here is com.foo-2.apk on the phone). $ADB is used
+// instead of adb when set (see fake/adb).
+public class AppRefresh {
+	static final String REMOTE_DIR = "/data/app";
+	static final String INDEX      = ".apkhashes";
+
+	// One apk, local or on the phone
+	static class Apk {
+		final String name;
+		final long   size;
+		final String md5;
+
+		Apk(String name, long size, String md5) {
+			this.name = name;
+			this.size = size;
+			this.md5  = md5;
+		}
+	}
+
+	private final String adb;
+	private final String remoteDir;
+
+	public AppRefresh(String adb, String remoteDir) {
+		this.adb       = adb;
+		this.remoteDir = remoteDir;
+	}
+
+	// com.foo-12.apk -> com.foo
+	static String baseName(String apk) {
+		String n = apk.endsWith(".apk") ? apk.substring(0, apk.length() - 4) : apk;
+		int dash = n.lastIndexOf('-');
+		if (dash > 0 && dash < n.length() - 1) {
+			boolean digits = true;
+			for (int i = dash + 1; i < n.length(); i++)
+				digits &= Character.isDigit(n.charAt(i));
+			if (digits)
+				n = n.substring(0, dash);
+		}
+		return n;
+	}
+
+	/// Phone //////////////////////////////////////////////
+	// Size and md5 of every apk of the remote dir, by base name. One
+	// adb shell call, "<size> <md5>  <name>" per apk
+	TreeMap<String, Apk> listRemote() throws IOException {
+		String cmd = "cd " + remoteDir + " && for f in *.apk; do [ -f \"$f\" ] && " +
+				"echo \"$(busybox stat -c %s \"$f\") $(busybox md5sum \"$f\")\"; done";
+		String out = run(adb, "shell", cmd);
+		TreeMap<String, Apk> apks = new TreeMap<String, Apk>();
+		for (String l : out.split("\n")) {
+			String[] f = l.trim().split("\\s+", 3);
+			if (f.length != 3 || f[1].length() != 32 || !f[2].endsWith(".apk"))
+				continue;
+			try {
+				apks.put(baseName(f[2]), new Apk(f[2], Long.parseLong(f[0]), f[1]));
+			} catch (NumberFormatException e) {
+				// Not a listing line (adb or shell noise)
+			}
+		}
+		// adb shell doesn't give the exit code, this is how a failure looks
+		if (apks.isEmpty() && out.trim().length() > 0)
+			throw new IOException("Cannot list " + remoteDir + " on the phone: " + out.trim());
+		return apks;
+	}
+
+	// Pulls the apk as dst, checks it is what was listed
+	String pull(Apk remote, File dst) throws IOException {
+		run(adb, "pull", remoteDir + "/" + remote.name, dst.getPath());
+		if (!dst.isFile() || dst.length() != remote.size || !remote.md5.equals(md5Of(dst))) {
+			dst.delete();
+			throw new IOException("Pulled " + remote.name + " doesn't match the phone's, try again");
+		}
+		return "  [PULL] " + remote.name + " -> " + dst.getName() + "\n";
+	}
+
+	private static String run(String... cmd) throws IOException {
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		p.getOutputStream().close();
+		String out = readAll(p.getInputStream());
+		try {
+			if (p.waitFor() != 0)
+				throw new IOException(Arrays.asList(cmd) + " failed: " + out.trim());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted");
+		}
+		return out.replace("\r", "");
+	}
+	////////////////////////////////////////////////////////
+
+	/// Local index ////////////////////////////////////////
+	// md5 of the local apks, by base name. <dir>/.apkhashes remembers
+	// them by name, size and mtime so an unchanged apk isn't hashed again
+	static TreeMap<String, Apk> listLocal(File dir) throws IOException {
+		File index = new File(dir, INDEX);
+		HashMap<String, String> known = new HashMap<String, String>(); // name -> "size mtime md5"
+		if (index.isFile()) {
+			BufferedReader br = new BufferedReader(new FileReader(index));
+			try {
+				String l;
+				while ((l = br.readLine()) != null) {
+					int tab = l.indexOf('\t');
+					if (tab > 0)
+						known.put(l.substring(0, tab), l.substring(tab + 1));
+				}
+			} finally {
+				br.close();
+			}
+		}
+
+		TreeMap<String, Apk> apks = new TreeMap<String, Apk>();
+		HashMap<String, String> now = new HashMap<String, String>();
+		String[] names = dir.list();
+		if (names == null)
+			throw new IOException("Cannot list " + dir);
+		Arrays.sort(names);
+		for (String n : names) {
+			File f = new File(dir, n);
+			if (!n.endsWith(".apk") || !f.isFile())
+				continue;
+			String key = f.length() + " " + f.lastModified();
+			String entry = known.get(n);
+			String md5 = entry != null && entry.startsWith(key + " ") ? entry.substring(key.length() + 1) : md5Of(f);
+			now.put(n, key + " " + md5);
+			// The first one of a base name, as ls $N*.apk gave it
+			if (!apks.containsKey(baseName(n)))
+				apks.put(baseName(n), new Apk(n, f.length(), md5));
+		}
+
+		if (!now.equals(known)) {
+			FileWriter w = new FileWriter(index);
+			try {
+				for (Map.Entry<String, String> e : now.entrySet())
+					w.write(e.getKey() + "\t" + e.getValue() + "\n");
+			} finally {
+				w.close();
+			}
+		}
+		return apks;
+	}
+
+	static String md5Of(File f) throws IOException {
+		MessageDigest d;
+		try {
+			d = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				d.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return RomAssembler.hex(d.digest());
+	}
+	////////////////////////////////////////////////////////
+
+	private static String readAll(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+		char[] buf = new char[8192];
+		int n;
+		while ((n = br.read(buf)) != -1)
+			sb.append(buf, 0, n);
+		br.close();
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int    pulls     = 4, i = 0;
+		String remoteDir = REMOTE_DIR;
+		while (i + 1 < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-j"))
+				pulls = Math.max(1, Integer.parseInt(args[i + 1]));
+			else if (args[i].equals("-r"))
+				remoteDir = args[i + 1];
+			else
+				break;
+			i += 2;
+		}
+		if (args.length - i != 2) {
+			System.err.println("Usage: AppRefresh [-j <pulls>] [-r <remote dir>] <local dir> <download dir>");
+			System.exit(2);
+		}
+		File localDir = new File(args[i]), downloadDir = new File(args[i + 1]);
+		String adb = System.getenv("ADB");
+		final AppRefresh refresh = new AppRefresh(adb == null || adb.length() == 0 ? "adb" : adb, remoteDir);
+		long start = System.currentTimeMillis();
+
+		TreeMap<String, Apk> local  = listLocal(localDir);
+		TreeMap<String, Apk> remote = refresh.listRemote();
+		System.out.println("AppRefresh: " + local.size() + " local apks, " + remote.size() + " on the phone");
+
+		downloadDir.mkdirs();
+		ExecutorService pool = Executors.newFixedThreadPool(pulls);
+		ArrayList<Future<String>> jobs = new ArrayList<Future<String>>();
+		ArrayList<String> differing = new ArrayList<String>();
+		for (Map.Entry<String, Apk> e : local.entrySet()) {
+			final Apk r = remote.get(e.getKey());
+			if (r == null || r.md5.equals(e.getValue().md5))
+				continue;
+			// Saved with the local name, to replace the local one
+			final File dst = new File(downloadDir, e.getValue().name);
+			differing.add(dst.getPath());
+			jobs.add(pool.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return refresh.pull(r, dst);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		boolean ok = true;
+		for (Future<String> f : jobs) {
+			try {
+				System.out.print(f.get());
+			} catch (ExecutionException e) {
+				System.out.println("  ERROR " + e.getCause().getMessage());
+				ok = false;
+			}
+		}
+
+		System.out.println("");
+		if (differing.isEmpty()) {
+			System.out.println("  No new files");
+		} else {
+			System.out.println("The following are different and should be uploaded to the server");
+			for (String d : differing)
+				System.out.println("  " + d);
+		}
+		System.out.println("");
+		System.out.println("AppRefresh: " + jobs.size() + " pulled in " + (System.currentTimeMillis() - start) + " ms");
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,313 @@
+package org.projectx.buildtools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Applies the mods of mod/ to the apks of the rom, as the build loop
+// used to do one after another with apkmod.sh. Mods of the same apk
+// (framework-res.1, framework-res.2) are applied in order, different
+// apks in parallel. The result for an apk is cached under a hash of the
+// input apk, its mods (files, .options, .patch) and the tools, so an
+// unchanged apk is just copied from the cache.
+//
+//   ModStage [-j <threads>] <mod dir> <system dir> <cache dir> <apkmod.sh>
+//
+// apkmod.sh runs in the current directory, as the build loop ran it,
+// with its log in <cache dir>/<apk>.log.
+public class ModStage {
+	// Next to apkmod.sh, changing any of them changes every result
+	static final String[] TOOLS   = { "apkmod.sh", "util_sh", "apktool.jar", "sign.sh" };
+	static final String   SOURCES = "../src/BuildTools/src";
+
+	static class Mod {
+		final File   dir;       // mod/<name>.apk
+		final String name;      // <name>, e.g. framework-res.1
+		String method = null;
+		String patch  = null;
+
+		Mod(File dir) {
+			this.dir  = dir;
+			this.name = dir.getName().substring(0, dir.getName().length() - 4);
+		}
+
+		File sibling(String suffix) {
+			return new File(dir.getParentFile(), name + suffix);
+		}
+	}
+
+	private final File   cacheDir;
+	private final File   apkmod;
+	private final String toolsHash;
+
+	public ModStage(File cacheDir, File apkmod) throws IOException {
+		this.cacheDir  = cacheDir;
+		this.apkmod    = apkmod;
+		MessageDigest d = newDigest();
+		for (String t : TOOLS)
+			hashFile(d, new File(apkmod.getParentFile(), t));
+		hashTree(d, new File(apkmod.getParentFile(), SOURCES), "");
+		this.toolsHash = RomAssembler.hex(d.digest());
+	}
+
+	// Mods by target apk name, in order, .exclude'd ones left out
+	static LinkedHashMap<String, ArrayList<Mod>> readMods(File modDir) throws IOException {
+		LinkedHashMap<String, ArrayList<Mod>> byApk = new LinkedHashMap<String, ArrayList<Mod>>();
+		String[] names = modDir.list();
+		if (names == null)
+			return byApk;
+		Arrays.sort(names);
+		for (String n : names) {
+			File f = new File(modDir, n);
+			if (!n.endsWith(".apk") || !f.isDirectory())
+				continue;
+			Mod m = new Mod(f);
+			if (m.sibling(".exclude").exists())
+				continue;
+			File options = m.sibling(".options");
+			if (options.isFile()) {
+				HashMap<String, String> o = readOptions(options);
+				m.method = o.get("method");
+				m.patch  = o.get("patch");
+			}
+			// We allow several mods for 1 apk
+			String base = m.name;
+			int dot = base.lastIndexOf('.');
+			if (dot > 0)
+				base = base.substring(0, dot);
+			ArrayList<Mod> mods = byApk.get(base + ".apk");
+			if (mods == null) {
+				mods = new ArrayList<Mod>();
+				byApk.put(base + ".apk", mods);
+			}
+			mods.add(m);
+		}
+		return byApk;
+	}
+
+	private static HashMap<String, String> readOptions(File f) throws IOException {
+		HashMap<String, String> o = new HashMap<String, String>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			String l;
+			while ((l = br.readLine()) != null) {
+				int eq = l.indexOf('=');
+				if (eq > 0 && !l.trim().startsWith("#"))
+					o.put(l.substring(0, eq).trim(), l.substring(eq + 1).trim());
+			}
+		} finally {
+			br.close();
+		}
+		return o;
+	}
+
+	// Applies the mods to apk, from the cache if possible.
+	// Returns what was done, for the log
+	public String apply(File apk, ArrayList<Mod> mods) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		String key = key(apk, mods);
+		String prefix = apk.getName() + "-";
+		File cached = new File(cacheDir, prefix + key);
+		if (cached.isFile()) {
+			copy(cached, apk);
+			return "  [MOD]       " + apk.getName() + " (cached) in " + (System.currentTimeMillis() - start) + " ms\n";
+		}
+
+		StringBuilder out = new StringBuilder();
+		File log = new File(cacheDir, apk.getName() + ".log");
+		log.delete();
+		for (Mod m : mods) {
+			out.append("  [MOD]       " + apk.getName() + " (" + m.dir + ")\n");
+			ProcessBuilder pb = new ProcessBuilder(apkmod.getPath(), apk.getPath(), m.dir.getPath());
+			pb.redirectErrorStream(true);
+			Map<String, String> env = pb.environment();
+			env.put("LOG", log.getPath());
+			env.remove("APKMOD_METHOD");
+			env.remove("APKMOD_PATCH");
+			if (m.method != null)
+				env.put("APKMOD_METHOD", m.method);
+			if (m.patch != null)
+				env.put("APKMOD_PATCH", m.patch);
+			Process p = pb.start();
+			out.append(readAll(p.getInputStream()));
+			if (p.waitFor() != 0)
+				throw new IOException("Cannot mod " + apk + " with " + m.dir + ". See " + log + " for details");
+		}
+
+		// Only the last result for an apk is kept
+		String[] old = cacheDir.list();
+		for (String n : old == null ? new String[0] : old) {
+			if (n.startsWith(prefix))
+				new File(cacheDir, n).delete();
+		}
+		File tmp = new File(cacheDir, prefix + key + ".tmp");
+		copy(apk, tmp);
+		tmp.renameTo(cached);
+		out.append("  [MOD]       " + apk.getName() + " done in " + (System.currentTimeMillis() - start) + " ms\n");
+		return out.toString();
+	}
+
+	private String key(File apk, ArrayList<Mod> mods) throws IOException {
+		MessageDigest d = newDigest();
+		d.update(toolsHash.getBytes());
+		hashFile(d, apk);
+		for (Mod m : mods) {
+			d.update(("\0mod " + m.name + " " + m.method + " " + m.patch + "\0").getBytes("UTF-8"));
+			hashTree(d, m.dir, "");
+			if (m.patch != null)
+				hashFile(d, new File(m.dir.getParentFile(), m.patch));
+		}
+		return RomAssembler.hex(d.digest());
+	}
+
+	/// Hashing ////////////////////////////////////////////
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Missing files count too, as missing
+	private static void hashFile(MessageDigest d, File f) throws IOException {
+		if (!f.isFile()) {
+			d.update((byte) 0);
+			return;
+		}
+		d.update((byte) 1);
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				d.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Names and contents, sorted
+	private static void hashTree(MessageDigest d, File dir, String path) throws IOException {
+		String[] names = dir.list();
+		if (names == null)
+			return;
+		Arrays.sort(names);
+		for (String n : names) {
+			File f = new File(dir, n);
+			d.update((path + n + "\0").getBytes("UTF-8"));
+			if (f.isDirectory())
+				hashTree(d, f, path + n + "/");
+			else
+				hashFile(d, f);
+		}
+	}
+
+	////////////////////////////////////////////////////////
+
+	private static void copy(File s, File d) throws IOException {
+		FileChannel in = new FileInputStream(s).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(d).getChannel();
+			try {
+				long size = in.size(), pos = 0;
+				while (pos < size)
+					pos += in.transferTo(pos, size - pos, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			sb.append(new String(buf, 0, n));
+		in.close();
+		return sb.toString();
+	}
+
+	// First <name> under dir, as find would
+	static File find(File dir, String name) {
+		String[] names = dir.list();
+		if (names == null)
+			return null;
+		Arrays.sort(names);
+		for (String n : names) {
+			File f = new File(dir, n);
+			if (n.equals(name) && f.isFile())
+				return f;
+			if (f.isDirectory()) {
+				File found = find(f, name);
+				if (found != null)
+					return found;
+			}
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors(), i = 0;
+		if (args.length > 1 && args[0].equals("-j")) {
+			threads = Math.max(1, Integer.parseInt(args[1]));
+			i = 2;
+		}
+		if (args.length - i != 4) {
+			System.err.println("Usage: ModStage [-j <threads>] <mod dir> <system dir> <cache dir> <apkmod.sh>");
+			System.exit(2);
+		}
+		File modDir = new File(args[i]), systemDir = new File(args[i + 1]);
+		File cacheDir = new File(args[i + 2]);
+		cacheDir.mkdirs();
+		long start = System.currentTimeMillis();
+		final ModStage stage = new ModStage(cacheDir, new File(args[i + 3]));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<String>> jobs = new ArrayList<Future<String>>();
+		for (final Map.Entry<String, ArrayList<Mod>> e : readMods(modDir).entrySet()) {
+			final File apk = find(systemDir, e.getKey());
+			if (apk == null)
+				continue;
+			jobs.add(pool.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return stage.apply(apk, e.getValue());
+				}
+			}));
+		}
+		pool.shutdown();
+
+		// Reported in order, once each apk is done
+		boolean ok = true;
+		for (Future<String> f : jobs) {
+			try {
+				System.out.print(f.get());
+			} catch (ExecutionException e) {
+				System.out.println("  ERROR " + e.getCause().getMessage());
+				ok = false;
+			}
+		}
+		System.out.println("ModStage: " + jobs.size() + " apks in " + (System.currentTimeMillis() - start) + " ms");
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,442 @@
+package org.projectx.buildtools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Builds the release zips out of the out directory in one go. Files are
+// deflated on every core while a single writer puts them, in order, in
+// the zip and hashes (MD5) what it writes: md5sums.txt (next to the zip)
+// is ready when the zip is. The extraapps zip is built in the same run,
+// with the EXTRAAPPS_APK files taken out of the rom and put there.
+// Directories get their own entries, as zip -r gave them, so the empty
+// ones are created by package_extract_dir too.
+// With -s each zip is signed (signapk -w) into <name>-signed.zip. signapk
+// writes it to a pipe, hashed on its way to the file for md5sums.txt.
+// Signing is still a second pass: signapk reads the whole zip again for
+// its entry digests and the whole-file signature. Doing that here, while
+// writing, needs a PKCS#7 signer, which the JDK has no public API for.
+//
+//   RomAssembler [-c <ini>] [-j <threads>] [-l <level>] [-s <tools dir>] \
+//       <rom dir> <rom.zip> [<extraapps dir> <extraapps.zip>]
+//
+//   -c  ini to read ROM_DIR_LIST, EXTRAAPPS_APK and ZIPFLAGS from
+//       (default conf/blackice.ini)
+//   -j  compressing threads (default: one per core)
+//   -l  deflate level, 0 to store (default from ZIPFLAGS)
+//   -s  sign with signapk.jar and the test key of <tools dir>
+public class RomAssembler {
+	static final String INI      = "conf/blackice.ini";
+	static final String MD5SUMS  = "md5sums.txt";
+	static final String SIGNAPK  = "signapk.jar";
+	static final String CERT     = "testkey.x509.pem";
+	static final String KEY      = "testkey.pk8";
+	static final String SIGNED   = "-signed";
+	static final int    LEVEL    = 6;         // zip's own default
+	static final int    WINDOW   = 2;         // Files in memory per thread
+	static final int    UNIX     = 0x0300;    // "Version made by" host
+	static final int    FILE     = 0100000;   // S_IFREG
+	static final int    DIR      = 0040000;   // S_IFDIR
+	static final int    DOS_DIR  = 0x10;
+
+	static class Source {
+		final File    file;
+		final String  name;
+		final boolean dir;
+
+		Source(File file, String name) {
+			this(file, name, false);
+		}
+
+		Source(File file, String name, boolean dir) {
+			this.file = file;
+			this.name = name;
+			this.dir  = dir;
+		}
+	}
+
+	private final int             level;
+	private final int             window;
+	private final ExecutorService pool;
+
+	public RomAssembler(int threads, int level) {
+		this.level  = level;
+		this.window = threads * WINDOW;
+		this.pool   = Executors.newFixedThreadPool(threads);
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// Writes the zip, returns its MD5
+	public String assemble(ArrayList<Source> sources, File zip) throws IOException {
+		long start = System.currentTimeMillis();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		File tmp = new File(zip.getPath() + ".tmp");
+		ArrayList<ZipRewriter.Entry> written = new ArrayList<ZipRewriter.Entry>();
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		long pos = 0, raw = 0;
+		OutputStream out = new DigestOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 65536), digest);
+		try {
+			// At most window files read and compressed ahead of the writer
+			LinkedList<Future<ZipRewriter.Entry>> ahead = new LinkedList<Future<ZipRewriter.Entry>>();
+			int next = 0;
+			while (next < sources.size() || !ahead.isEmpty()) {
+				while (next < sources.size() && ahead.size() < window)
+					ahead.add(pool.submit(compressor(sources.get(next++))));
+				ZipRewriter.Entry e = take(ahead.removeFirst());
+				offsets.add(pos);
+				pos += write(out, ZipRewriter.localHeader(e, new byte[0], pos, 0).array());
+				pos += write(out, e.data);
+				raw += e.usize;
+				e.data = null;
+				written.add(e);
+			}
+			long cdOffset = pos;
+			for (int i = 0; i < written.size(); i++)
+				pos += write(out, ZipRewriter.centralHeader(written.get(i), offsets.get(i)).array());
+			write(out, ZipRewriter.endRecord(written.size(), pos - cdOffset, cdOffset, new byte[0]).array());
+			out.close();
+		} catch (IOException e) {
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+		if (!tmp.renameTo(zip)) {
+			zip.delete();
+			if (!tmp.renameTo(zip))
+				throw new IOException("Cannot rename " + tmp + " to " + zip);
+		}
+		String md5 = hex(digest.digest());
+		updateMd5Sums(zip, md5);
+		System.out.println("RomAssembler: " + zip.getName() + ": " + written.size() + " entries, " +
+				raw + " -> " + zip.length() + " bytes, md5 " + md5 + " in " +
+				(System.currentTimeMillis() - start) + " ms");
+		return md5;
+	}
+
+	/// Signing ////////////////////////////////////////////
+	// foo.zip -> foo-signed.zip
+	static File signedName(File zip) {
+		String n = zip.getName();
+		n = n.endsWith(".zip") ? n.substring(0, n.length() - 4) : n;
+		return new File(zip.getAbsoluteFile().getParentFile(), n + SIGNED + ".zip");
+	}
+
+	// signapk -w into signed, its md5 goes to md5sums.txt. signapk writes
+	// the whole file in order, so it gets /dev/stdout and is read here.
+	// It reads zip from scratch: only the md5sum pass is saved
+	public static String sign(File zip, File signed, File toolsDir) throws IOException {
+		long start = System.currentTimeMillis();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		final Process p = new ProcessBuilder(java, "-jar", new File(toolsDir, SIGNAPK).getPath(), "-w",
+				new File(toolsDir, CERT).getPath(), new File(toolsDir, KEY).getPath(),
+				zip.getPath(), "/dev/stdout").start();
+		p.getOutputStream().close();
+		// Errors go on stderr, read along so signapk never blocks on it
+		final StringBuilder errors = new StringBuilder();
+		Thread drain = new Thread() {
+			public void run() {
+				try {
+					BufferedReader br = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+					String l;
+					while ((l = br.readLine()) != null)
+						errors.append(l).append('\n');
+				} catch (IOException e) {
+					// Gone with the process
+				}
+			}
+		};
+		drain.start();
+
+		File tmp = new File(signed.getPath() + ".tmp");
+		InputStream  in  = p.getInputStream();
+		OutputStream out = new DigestOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 65536), digest);
+		int code;
+		try {
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				out.write(buf, 0, n);
+			code = p.waitFor();
+			drain.join();
+		} catch (InterruptedException e) {
+			code = -1;
+		} finally {
+			out.close();
+			in.close();
+		}
+		if (code != 0 || tmp.length() == 0) {
+			tmp.delete();
+			throw new IOException("Cannot sign " + zip + ": " + errors.toString().trim());
+		}
+		if (!tmp.renameTo(signed)) {
+			signed.delete();
+			if (!tmp.renameTo(signed))
+				throw new IOException("Cannot rename " + tmp + " to " + signed);
+		}
+		String md5 = hex(digest.digest());
+		updateMd5Sums(signed, md5);
+		System.out.println("RomAssembler: " + signed.getName() + ": signed, " + signed.length() +
+				" bytes, md5 " + md5 + " in " + (System.currentTimeMillis() - start) + " ms");
+		return md5;
+	}
+	////////////////////////////////////////////////////////
+
+	private Callable<ZipRewriter.Entry> compressor(final Source s) {
+		return new Callable<ZipRewriter.Entry>() {
+			public ZipRewriter.Entry call() throws IOException {
+				ZipRewriter.Entry e = new ZipRewriter.Entry();
+				e.name         = s.dir ? s.name + "/" : s.name;
+				e.nameBytes    = e.name.getBytes("UTF-8");
+				if (e.nameBytes.length != e.name.length())
+					e.flags |= ZipRewriter.FLAG_UTF8;
+				e.versionMade  = UNIX | 20;
+				e.externalAttr = s.dir ? (long) (DIR | 0755) << 16 | DOS_DIR
+						: (long) (FILE | (s.file.canExecute() ? 0755 : 0644)) << 16;
+				e.dosTime      = ZipRewriter.dosTime(s.file.lastModified());
+				e.data         = s.dir ? new byte[0] : ZipRewriter.readAll(s.file);
+				// Stored anyway when deflating doesn't help (apks, images)
+				ZipRewriter.compress(e, level == 0 ? ZipRewriter.STORED : ZipRewriter.DEFLATED, level);
+				return e;
+			}
+		};
+	}
+
+	private static ZipRewriter.Entry take(Future<ZipRewriter.Entry> f) throws IOException {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			throw t instanceof IOException ? (IOException) t : new IOException(t.toString());
+		} catch (InterruptedException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	private static int write(OutputStream out, byte[] b) throws IOException {
+		out.write(b);
+		return b.length;
+	}
+
+	// As md5sum -b would print it, replacing the line of a previous build
+	static void updateMd5Sums(File zip, String md5) throws IOException {
+		File sums = new File(zip.getAbsoluteFile().getParentFile(), MD5SUMS);
+		ArrayList<String> lines = new ArrayList<String>();
+		if (sums.isFile()) {
+			BufferedReader br = new BufferedReader(new FileReader(sums));
+			try {
+				String l;
+				while ((l = br.readLine()) != null) {
+					if (!l.endsWith(" *" + zip.getName()))
+						lines.add(l);
+				}
+			} finally {
+				br.close();
+			}
+		}
+		lines.add(md5 + " *" + zip.getName());
+		FileWriter w = new FileWriter(sums);
+		try {
+			for (String l : lines)
+				w.write(l + "\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for (byte x : b)
+			sb.append(String.format("%02x", x & 0xff));
+		return sb.toString();
+	}
+
+	/// Sources ////////////////////////////////////////////
+	// Directories and regular files under dir/path, named path/...,
+	// sorted, each directory before what it holds
+	static void collect(File dir, String path, HashSet<String> skip, ArrayList<Source> out) {
+		File f = path.length() == 0 ? dir : new File(dir, path);
+		if (f.isDirectory()) {
+			String[] names = f.list();
+			if (names == null) {
+				System.out.println("RomAssembler: cannot list " + f + ", skipped");
+				return;
+			}
+			if (path.length() > 0 && !skip.contains(path))
+				out.add(new Source(f, path, true));
+			Arrays.sort(names);
+			for (String n : names)
+				collect(dir, path.length() == 0 ? n : path + "/" + n, skip, out);
+		} else if (f.isFile()) {
+			if (!skip.contains(path))
+				out.add(new Source(f, path));
+		} else {
+			System.out.println("RomAssembler: " + f + " not found, skipped");
+		}
+	}
+
+	// <src>[:<dst>] as in EXTRAAPPS_APK, { src, dst }
+	static String[] move(String spec) {
+		int colon = spec.lastIndexOf(':');
+		return colon < 0 ? new String[] { spec, spec }
+				: new String[] { spec.substring(0, colon), spec.substring(colon + 1) };
+	}
+
+	// KEY=VALUE and KEY="VALUE" lines of a shell ini, "\" continues a line
+	static HashMap<String, String> readIni(File f) throws IOException {
+		HashMap<String, String> ini = new HashMap<String, String>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			StringBuilder line = new StringBuilder();
+			String l;
+			while ((l = br.readLine()) != null) {
+				if (l.endsWith("\\")) {
+					line.append(l, 0, l.length() - 1).append(' ');
+					continue;
+				}
+				line.append(l);
+				String s = line.toString().trim();
+				line.setLength(0);
+				int eq = s.indexOf('=');
+				if (s.startsWith("#") || eq <= 0 || !s.substring(0, eq).matches("[A-Za-z_][A-Za-z0-9_]*"))
+					continue;
+				String v = s.substring(eq + 1);
+				if (v.startsWith("\"")) {
+					int end = v.indexOf('"', 1);
+					v = end < 0 ? v.substring(1) : v.substring(1, end);
+				} else {
+					v = v.split("\\s+")[0];
+				}
+				ini.put(s.substring(0, eq), v.trim());
+			}
+		} finally {
+			br.close();
+		}
+		return ini;
+	}
+
+	// -r9 -> 9, -r -> zip's default, -0 -> stored
+	static int levelOf(String zipFlags) {
+		if (zipFlags != null) {
+			for (char c : zipFlags.toCharArray()) {
+				if (c >= '0' && c <= '9')
+					return c - '0';
+			}
+		}
+		return LEVEL;
+	}
+	////////////////////////////////////////////////////////
+
+	public static void main(String[] args) {
+		String ini = INI;
+		File   signWith = null;
+		int threads = Runtime.getRuntime().availableProcessors(), level = -1, i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-c") && i + 1 < args.length)
+				ini = args[++i];
+			else if (args[i].equals("-j") && i + 1 < args.length)
+				threads = Math.max(1, Integer.parseInt(args[++i]));
+			else if (args[i].equals("-l") && i + 1 < args.length)
+				level = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-s") && i + 1 < args.length)
+				signWith = new File(args[++i]);
+			else
+				break;
+		}
+		int left = args.length - i;
+		if (left != 2 && left != 4) {
+			System.err.println("Usage: RomAssembler [-c <ini>] [-j <threads>] [-l <level>] [-s <tools dir>] " +
+					"<rom dir> <rom.zip> [<extraapps dir> <extraapps.zip>]");
+			System.exit(2);
+		}
+		RomAssembler assembler = null;
+		try {
+			HashMap<String, String> conf = readIni(new File(ini));
+			if (level < 0)
+				level = levelOf(conf.get("ZIPFLAGS"));
+			File romDir = new File(args[i]);
+
+			// Files going to extraapps never make it to the rom
+			HashSet<String> moved = new HashSet<String>();
+			ArrayList<String[]> moves = new ArrayList<String[]>();
+			String apks = conf.get("EXTRAAPPS_APK");
+			if (apks != null && apks.trim().length() > 0) {
+				for (String spec : apks.trim().split("\\s+")) {
+					String[] m = move(spec);
+					moved.add(m[0]);
+					moves.add(m);
+				}
+			}
+			ArrayList<Source> rom = new ArrayList<Source>();
+			String dirs = conf.get("ROM_DIR_LIST");
+			if (dirs == null)
+				throw new IOException(ini + ": no ROM_DIR_LIST");
+			for (String d : dirs.trim().split("\\s+"))
+				collect(romDir, d, moved, rom);
+
+			assembler = new RomAssembler(threads, level);
+			File romZip = new File(args[i + 1]);
+			assembler.assemble(rom, romZip);
+			if (signWith != null)
+				sign(romZip, signedName(romZip), signWith);
+
+			if (left == 4) {
+				ArrayList<Source> extra = new ArrayList<Source>();
+				HashSet<String> replaced = new HashSet<String>();
+				for (String[] m : moves)
+					replaced.add(m[1]);
+				collect(new File(args[i + 2]), "", replaced, extra);
+				for (String[] m : moves) {
+					File f = new File(romDir, m[0]);
+					if (f.isFile())
+						extra.add(new Source(f, m[1]));
+				}
+				File extraZip = new File(args[i + 3]);
+				assembler.assemble(extra, extraZip);
+				if (signWith != null)
+					sign(extraZip, signedName(extraZip), signWith);
+			}
+		} catch (IOException e) {
+			System.err.println("RomAssembler: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			if (assembler != null)
+				assembler.shutdown();
+		}
+	}
+}
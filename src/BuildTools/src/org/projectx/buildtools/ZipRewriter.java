@@ -0,0 +1,482 @@
+package org.projectx.buildtools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Rewrites a zip (apk) with some entries replaced or added, without
+// touching the others: their compressed bytes are copied as they are.
+// Only the new contents get compressed. Stored entries have their data
+// aligned (as zipalign does), so the result needs no zipalign pass.
+//
+// New contents come from a directory (files under the given paths,
+// named relative to it) or from another zip (entries under the given
+// paths, copied raw too):
+//
+//   ZipRewriter [-a <align>] [-l <level>] <in.zip> <out.zip> <dir|zip> [<path>...]
+//
+//   -a  alignment of stored data, 0 for none (default 4)
+//   -l  deflate level for new contents (default 9)
+//
+// in.zip and out.zip may be the same file. Zip64 is not supported,
+// apks don't need it.
+public class ZipRewriter {
+	static final int LOCAL_SIG   = 0x04034b50;
+	static final int CENTRAL_SIG = 0x02014b50;
+	static final int END_SIG     = 0x06054b50;
+	static final int LOCAL_LEN   = 30;
+	static final int CENTRAL_LEN = 46;
+	static final int END_LEN     = 22;
+
+	static final int STORED          = 0;
+	static final int DEFLATED        = 8;
+	static final int FLAG_DESCRIPTOR = 0x0008;
+	static final int FLAG_UTF8       = 0x0800;
+
+	static final int ALIGN = 4;
+	static final int LEVEL = Deflater.BEST_COMPRESSION;
+
+	// What aapt leaves uncompressed
+	static final String[] NO_COMPRESS = {
+		".jpg", ".jpeg", ".png", ".gif", ".wav", ".mp2", ".mp3", ".ogg", ".aac",
+		".mpg", ".mpeg", ".mid", ".midi", ".smf", ".jet", ".rtttl", ".imy", ".xmf",
+		".mp4", ".m4a", ".m4v", ".3gp", ".3gpp", ".3g2", ".3gpp2", ".amr", ".awb",
+		".wma", ".wmv"
+	};
+
+	static class Entry {
+		String name;
+		byte[] nameBytes;
+		int    versionMade   = 20;
+		int    versionNeeded = 10;
+		int    flags         = 0;
+		int    method        = STORED;
+		int    dosTime       = 0;   // date << 16 | time
+		long   crc;
+		long   csize;
+		long   usize;
+		byte[] extra         = new byte[0];
+		byte[] localExtra    = new byte[0];
+		byte[] comment       = new byte[0];
+		int    internalAttr  = 0;
+		long   externalAttr  = 0;
+		long   offset;              // Local header, in its own zip
+
+		// Either raw bytes in a zip, or contents compressed here
+		FileChannel source     = null;
+		long        dataOffset = 0;
+		byte[]      data       = null;
+	}
+
+	// The central directory of a zip, in order
+	static class ZipIn {
+		final RandomAccessFile file;
+		final FileChannel      channel;
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
+		byte[] comment = new byte[0];
+
+		ZipIn(File f) throws IOException {
+			file    = new RandomAccessFile(f, "r");
+			channel = file.getChannel();
+			try {
+				readCentral(f);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void readCentral(File f) throws IOException {
+			long size = channel.size();
+			int  tail = (int) Math.min(size, END_LEN + 0xffff);
+			ByteBuffer b = read(size - tail, tail);
+			int end = -1;
+			for (int i = tail - END_LEN; i >= 0; i--) {
+				if (b.getInt(i) == END_SIG) {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0)
+				throw new IOException(f + ": not a zip file");
+			int  count    = b.getShort(end + 10) & 0xffff;
+			long cdSize   = b.getInt(end + 12) & 0xffffffffL;
+			long cdOffset = b.getInt(end + 16) & 0xffffffffL;
+			comment = new byte[b.getShort(end + 20) & 0xffff];
+			b.position(end + END_LEN);
+			b.get(comment, 0, Math.min(comment.length, b.remaining()));
+			if (count == 0xffff || cdOffset == 0xffffffffL)
+				throw new IOException(f + ": zip64 is not supported");
+
+			ByteBuffer cd = read(cdOffset, (int) cdSize);
+			for (int i = 0; i < count; i++) {
+				if (cd.getInt() != CENTRAL_SIG)
+					throw new IOException(f + ": broken central directory");
+				Entry e = new Entry();
+				e.versionMade   = cd.getShort() & 0xffff;
+				e.versionNeeded = cd.getShort() & 0xffff;
+				e.flags         = cd.getShort() & 0xffff;
+				e.method        = cd.getShort() & 0xffff;
+				e.dosTime       = cd.getInt();
+				e.crc           = cd.getInt() & 0xffffffffL;
+				e.csize         = cd.getInt() & 0xffffffffL;
+				e.usize         = cd.getInt() & 0xffffffffL;
+				int n = cd.getShort() & 0xffff, x = cd.getShort() & 0xffff, c = cd.getShort() & 0xffff;
+				cd.getShort();  // Disk
+				e.internalAttr  = cd.getShort() & 0xffff;
+				e.externalAttr  = cd.getInt() & 0xffffffffL;
+				e.offset        = cd.getInt() & 0xffffffffL;
+				e.nameBytes     = new byte[n];
+				e.extra         = new byte[x];
+				e.comment       = new byte[c];
+				cd.get(e.nameBytes);
+				cd.get(e.extra);
+				cd.get(e.comment);
+				e.name = new String(e.nameBytes, (e.flags & FLAG_UTF8) != 0 ? "UTF-8" : "ISO-8859-1");
+
+				ByteBuffer local = read(e.offset, LOCAL_LEN);
+				if (local.getInt(0) != LOCAL_SIG)
+					throw new IOException(f + ": broken local header for " + e.name);
+				int ln = local.getShort(26) & 0xffff, lx = local.getShort(28) & 0xffff;
+				e.localExtra = new byte[lx];
+				read(e.offset + LOCAL_LEN + ln, lx).get(e.localExtra);
+				e.source     = channel;
+				e.dataOffset = e.offset + LOCAL_LEN + ln + lx;
+				entries.add(e);
+			}
+		}
+
+		private ByteBuffer read(long pos, int len) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+			while (b.hasRemaining()) {
+				if (channel.read(b, pos + b.position()) < 0)
+					throw new IOException("Unexpected end of zip");
+			}
+			b.flip();
+			return b;
+		}
+
+		void close() throws IOException {
+			file.close();
+		}
+	}
+
+	private final int align;
+	private final int level;
+
+	int copied   = 0;
+	int replaced = 0;
+	int added    = 0;
+
+	public ZipRewriter(int align, int level) {
+		this.align = align;
+		this.level = level;
+	}
+
+	public void rewrite(File in, File out, File source, String[] paths) throws IOException {
+		ZipIn zin = new ZipIn(in);
+		ZipIn zsrc = null;
+		try {
+			// New contents, by name
+			LinkedHashMap<String, Entry> changes = new LinkedHashMap<String, Entry>();
+			if (source.isDirectory()) {
+				if (paths.length == 0)
+					paths = new String[] { "" };
+				for (String p : paths)
+					collect(source, trim(p), changes);
+			} else {
+				zsrc = new ZipIn(source);
+				for (Entry e : zsrc.entries) {
+					if (paths.length == 0 || under(e.name, paths))
+						changes.put(e.name, e);
+				}
+			}
+
+			ArrayList<Entry> result = new ArrayList<Entry>();
+			for (Entry e : zin.entries) {
+				Entry c = changes.remove(e.name);
+				if (c == null) {
+					result.add(e);
+					copied++;
+					continue;
+				}
+				if (c.data != null)
+					compress(c, e.method, level);
+				result.add(c);
+				replaced++;
+			}
+			for (Entry c : changes.values()) {
+				if (c.data != null)
+					compress(c, noCompress(c.name) ? STORED : DEFLATED, level);
+				result.add(c);
+				added++;
+			}
+
+			File tmp = new File(out.getPath() + ".tmp");
+			write(result, zin.comment, tmp);
+			zin.close();
+			if (!tmp.renameTo(out)) {
+				out.delete();
+				if (!tmp.renameTo(out))
+					throw new IOException("Cannot rename " + tmp + " to " + out);
+			}
+		} finally {
+			zin.close();
+			if (zsrc != null)
+				zsrc.close();
+		}
+	}
+
+	private static String trim(String p) {
+		while (p.startsWith("./"))
+			p = p.substring(2);
+		while (p.endsWith("/"))
+			p = p.substring(0, p.length() - 1);
+		return p.equals(".") ? "" : p;
+	}
+
+	private static boolean under(String name, String[] paths) {
+		for (String p : paths) {
+			p = trim(p);
+			if (p.length() == 0 || name.equals(p) || name.startsWith(p + "/"))
+				return true;
+		}
+		return false;
+	}
+
+	// Files under dir/path, named path/...
+	private void collect(File dir, String path, LinkedHashMap<String, Entry> changes) throws IOException {
+		File f = path.length() == 0 ? dir : new File(dir, path);
+		if (f.isDirectory()) {
+			String[] names = f.list();
+			Arrays.sort(names);
+			for (String n : names)
+				collect(dir, path.length() == 0 ? n : path + "/" + n, changes);
+		} else if (f.isFile()) {
+			Entry e = new Entry();
+			e.name      = path;
+			e.nameBytes = path.getBytes("UTF-8");
+			if (e.nameBytes.length != path.length())
+				e.flags |= FLAG_UTF8;
+			e.dosTime   = dosTime(f.lastModified());
+			e.data      = readAll(f);
+			changes.put(path, e);
+		} else {
+			throw new IOException(f + ": no such file or directory");
+		}
+	}
+
+	// Deflated unless asked to store it or deflating doesn't help
+	static void compress(Entry e, int method, int level) {
+		CRC32 crc = new CRC32();
+		crc.update(e.data);
+		e.crc   = crc.getValue();
+		e.usize = e.data.length;
+		if (method == DEFLATED) {
+			Deflater d = new Deflater(level, true);
+			d.setInput(e.data);
+			d.finish();
+			ByteArrayOutputStream bo = new ByteArrayOutputStream(e.data.length / 2 + 64);
+			byte[] buf = new byte[16384];
+			while (!d.finished())
+				bo.write(buf, 0, d.deflate(buf));
+			d.end();
+			if (bo.size() < e.data.length) {
+				e.data          = bo.toByteArray();
+				e.method        = DEFLATED;
+				e.versionNeeded = 20;
+				e.csize         = e.data.length;
+				return;
+			}
+		}
+		e.method        = STORED;
+		e.versionNeeded = 10;
+		e.csize         = e.data.length;
+	}
+
+	static boolean noCompress(String name) {
+		String n = name.toLowerCase();
+		for (String ext : NO_COMPRESS) {
+			if (n.endsWith(ext))
+				return true;
+		}
+		return false;
+	}
+
+	private void write(ArrayList<Entry> entries, byte[] comment, File f) throws IOException {
+		FileOutputStream fo = new FileOutputStream(f);
+		try {
+			FileChannel out = fo.getChannel();
+			long pos = 0;
+			long[] offsets = new long[entries.size()];
+			for (int i = 0; i < entries.size(); i++) {
+				Entry e = entries.get(i);
+				offsets[i] = pos;
+				ByteBuffer h = localHeader(e, e.data != null ? new byte[0] : e.localExtra, pos, align);
+				pos += writeFully(out, h);
+				if (e.data != null) {
+					pos += writeFully(out, ByteBuffer.wrap(e.data));
+				} else {
+					long done = 0;
+					while (done < e.csize)
+						done += e.source.transferTo(e.dataOffset + done, e.csize - done, out);
+					pos += done;
+				}
+			}
+
+			long cdOffset = pos;
+			for (int i = 0; i < entries.size(); i++) {
+				ByteBuffer h = centralHeader(entries.get(i), offsets[i]);
+				pos += writeFully(out, h);
+			}
+
+			writeFully(out, endRecord(entries.size(), pos - cdOffset, cdOffset, comment));
+		} catch (IOException e) {
+			fo.close();
+			f.delete();
+			throw e;
+		}
+		fo.close();
+	}
+
+	/// Zip records //////////////////////////////////////
+	// Local header, with the extra field padded so that stored data
+	// starting at pos + header is aligned. Sizes are known by now, so
+	// there is never a data descriptor.
+	static ByteBuffer localHeader(Entry e, byte[] extra, long pos, int align) {
+		if (align > 0 && e.method == STORED) {
+			long start = pos + LOCAL_LEN + e.nameBytes.length + extra.length;
+			int  pad   = (int) ((align - start % align) % align);
+			extra = Arrays.copyOf(extra, extra.length + pad);
+		}
+		ByteBuffer h = ByteBuffer.allocate(LOCAL_LEN + e.nameBytes.length + extra.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(LOCAL_SIG);
+		h.putShort((short) e.versionNeeded);
+		h.putShort((short) (e.flags & ~FLAG_DESCRIPTOR));
+		h.putShort((short) e.method);
+		h.putInt(e.dosTime);
+		h.putInt((int) e.crc);
+		h.putInt((int) e.csize);
+		h.putInt((int) e.usize);
+		h.putShort((short) e.nameBytes.length);
+		h.putShort((short) extra.length);
+		h.put(e.nameBytes);
+		h.put(extra);
+		h.flip();
+		return h;
+	}
+
+	static ByteBuffer centralHeader(Entry e, long offset) {
+		ByteBuffer h = ByteBuffer.allocate(CENTRAL_LEN + e.nameBytes.length + e.extra.length +
+				e.comment.length).order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(CENTRAL_SIG);
+		h.putShort((short) e.versionMade);
+		h.putShort((short) e.versionNeeded);
+		h.putShort((short) (e.flags & ~FLAG_DESCRIPTOR));
+		h.putShort((short) e.method);
+		h.putInt(e.dosTime);
+		h.putInt((int) e.crc);
+		h.putInt((int) e.csize);
+		h.putInt((int) e.usize);
+		h.putShort((short) e.nameBytes.length);
+		h.putShort((short) e.extra.length);
+		h.putShort((short) e.comment.length);
+		h.putShort((short) 0);
+		h.putShort((short) e.internalAttr);
+		h.putInt((int) e.externalAttr);
+		h.putInt((int) offset);
+		h.put(e.nameBytes);
+		h.put(e.extra);
+		h.put(e.comment);
+		h.flip();
+		return h;
+	}
+
+	static ByteBuffer endRecord(int count, long cdSize, long cdOffset, byte[] comment) {
+		ByteBuffer end = ByteBuffer.allocate(END_LEN + comment.length).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_SIG);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) count);
+		end.putShort((short) count);
+		end.putInt((int) cdSize);
+		end.putInt((int) cdOffset);
+		end.putShort((short) comment.length);
+		end.put(comment);
+		end.flip();
+		return end;
+	}
+	////////////////////////////////////////////////////////
+
+	static int writeFully(FileChannel out, ByteBuffer b) throws IOException {
+		int n = b.remaining();
+		while (b.hasRemaining())
+			out.write(b);
+		return n;
+	}
+
+	static byte[] readAll(File f) throws IOException {
+		byte[] b = new byte[(int) f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int off = 0, n;
+			while (off < b.length && (n = in.read(b, off, b.length - off)) > 0)
+				off += n;
+			if (off != b.length)
+				throw new IOException(f + ": short read");
+		} finally {
+			in.close();
+		}
+		return b;
+	}
+
+	static int dosTime(long millis) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(millis);
+		int year = Math.max(c.get(Calendar.YEAR), 1980);
+		int date = (year - 1980) << 9 | (c.get(Calendar.MONTH) + 1) << 5 | c.get(Calendar.DAY_OF_MONTH);
+		int time = c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) / 2;
+		return date << 16 | time;
+	}
+
+	public static void main(String[] args) {
+		int align = ALIGN, level = LEVEL, i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-a") && i + 1 < args.length)
+				align = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-l") && i + 1 < args.length)
+				level = Integer.parseInt(args[++i]);
+			else
+				break;
+		}
+		if (args.length - i < 3) {
+			System.err.println("Usage: ZipRewriter [-a <align>] [-l <level>] <in.zip> <out.zip> <dir|zip> [<path>...]");
+			System.exit(2);
+		}
+		File in = new File(args[i]), out = new File(args[i + 1]), source = new File(args[i + 2]);
+		String[] paths = Arrays.copyOfRange(args, i + 3, args.length);
+		long start = System.currentTimeMillis();
+		ZipRewriter z = new ZipRewriter(align, level);
+		try {
+			z.rewrite(in, out, source, paths);
+		} catch (IOException e) {
+			System.err.println("ZipRewriter: " + e.getMessage());
+			System.exit(1);
+		}
+		System.out.println("ZipRewriter: " + out.getName() + ": " + z.copied + " copied, " + z.replaced +
+				" replaced, " + z.added + " added in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
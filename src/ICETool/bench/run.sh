@@ -0,0 +1,20 @@
+#!/bin/sh
+# Builds the Android free ICETool classes with the benchmarks and runs
+# them in a plain JVM, against fake/su and fake/icetool:
+#
+#   ./run.sh [-w <warmup ms>] [-t <measure ms>] [bench...]
+#
+# No Android SDK needed: only the classes listed in CORE are compiled.
+# FAKE_SU_DELAY=<seconds> makes fake/su slow to start, as su is on a device.
+cd `dirname $0`
+BENCH_DIR=`pwd`
+SRC=../src/org/projectx/icetool
+OUT=${BENCH_OUT:-${TMPDIR:-/tmp}/icetool-bench}
+
+CORE="ManifestParser SetupManifest OutputStreamer RootShell CommandStats \
+      ConsoleBuffer OutputJournal EventParser"
+
+rm -rf $OUT && mkdir -p $OUT || exit 1
+javac -nowarn -d $OUT `for c in $CORE; do echo $SRC/$c.java; done` \
+  `find src -name '*.java'` || exit 1
+exec java -cp $OUT org.projectx.icetool.bench.CoreBench -s $BENCH_DIR/fake "$@"
@@ -0,0 +1,307 @@
+package org.projectx.icetool.bench;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.projectx.icetool.ConsoleBuffer;
+import org.projectx.icetool.EventParser;
+import org.projectx.icetool.ManifestParser;
+import org.projectx.icetool.OutputJournal;
+import org.projectx.icetool.OutputStreamer;
+import org.projectx.icetool.RootShell;
+import org.projectx.icetool.SetupManifest;
+
+// Timings of the Android free part of ICETool in a plain JVM, with
+// bench/fake/su and bench/fake/icetool standing in for the device:
+//
+//   manifest.parse     icetool setup output -> SetupManifest
+//   manifest.lists     the same plus every category list (as the tabs build them)
+//   manifest.large     a generated manifest of LARGE_COMMANDS commands
+//   console.append     text into the ConsoleBuffer
+//   output.stream      fake icetool output through RootShell, EventParser and
+//                      OutputJournal into the console, as ScriptExecuter feeds it
+//   command.latency    a command round trip on a running shell
+//   command.cold       the same, su started for it
+//
+// Each one is run for WARMUP_MS, then measured for MEASURE_MS.
+//
+//   CoreBench [-w <warmup ms>] [-t <measure ms>] [-s <fake dir>] [bench...]
+public class CoreBench {
+	static final long WARMUP_MS  = 2000;
+	static final long MEASURE_MS = 5000;
+
+	// Sizes of the fake output
+	static final int SETUP_COMMANDS = 60;
+	static final int SETUP_OPTIONS  = 10;
+	static final int LARGE_COMMANDS = 5000;
+	static final int LARGE_OPTIONS  = 8;
+	static final int STREAM_BYTES   = 4 * 1024 * 1024;
+	static final int APPEND_CHUNK   = 4096;
+	static final int JOURNAL_CHARS  = 256 * 1024;  // As OutputJournal.getInstance()
+
+	static abstract class Bench {
+		final String name;
+
+		Bench(String name) {
+			this.name = name;
+		}
+
+		void setUp() throws Exception {
+		}
+
+		// One operation, returns the bytes it went through (0 if that makes no sense)
+		abstract long run() throws Exception;
+
+		void tearDown() throws Exception {
+		}
+	}
+
+	static final OutputStreamer.Listener DISCARD = new OutputStreamer.Listener() {
+		public void onOutput(String chunk) {
+		}
+	};
+
+	private final long   warmupMs;
+	private final long   measureMs;
+	private final File   fakeDir;
+	private String       setupText = null;
+
+	public CoreBench(long warmupMs, long measureMs, File fakeDir) {
+		this.warmupMs  = warmupMs;
+		this.measureMs = measureMs;
+		this.fakeDir   = fakeDir;
+	}
+
+	RootShell fakeShell() {
+		return new RootShell(new File(fakeDir, "su").getPath());
+	}
+
+	// Output of the fake icetool setup, read once through a shell
+	String setupText() throws Exception {
+		if (setupText == null) {
+			final StringBuilder sb = new StringBuilder();
+			RootShell shell = fakeShell();
+			try {
+				shell.run("icetool setup " + SETUP_COMMANDS + " " + SETUP_OPTIONS, new OutputStreamer.Listener() {
+					public void onOutput(String chunk) {
+						sb.append(chunk);
+					}
+				});
+			} finally {
+				shell.close();
+			}
+			setupText = sb.toString();
+		}
+		return setupText;
+	}
+
+	// What icetool setup would say with that many commands, each in one
+	// of 8 categories, with options, descriptions, resources and targets
+	static String syntheticManifest(int commands, int options) {
+		StringBuilder sb = new StringBuilder("ICETOOL_VERSION:synthetic\nSETTING:BASE_URL=http://example.com/ice\n");
+		sb.append("COMMANDS:");
+		for (int c = 0; c < commands; c++)
+			sb.append("cmd").append(c).append('@');
+		sb.append("\nCATEGORIES:");
+		for (int k = 0; k < 8; k++)
+			sb.append("cat").append(k).append('@');
+		sb.append('\n');
+		for (int k = 0; k < 8; k++) {
+			sb.append("CATEGORY_COMMANDS:cat").append(k).append(':');
+			for (int c = k; c < commands; c += 8)
+				sb.append("cmd").append(c).append('@');
+			sb.append('\n');
+		}
+		for (int c = 0; c < commands; c++) {
+			sb.append("OPTIONS:cmd").append(c).append(':');
+			for (int o = 0; o < options; o++)
+				sb.append("opt").append(o).append('@');
+			sb.append("\nDESCRIPTIONS:cmd").append(c).append(':');
+			for (int o = 0; o < options; o++)
+				sb.append("Option ").append(o).append(" of command ").append(c).append('@');
+			sb.append("\nRESOURCES:cmd").append(c).append(":system@res").append(c % 16);
+			sb.append("\nTARGETS:cmd").append(c).append(" opt0:/sdcard/f").append(c)
+			  .append("=/system/etc/f").append(c).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/// Benchmarks /////////////////////////////////////////
+	Bench[] all() {
+		return new Bench[] {
+			new Bench("manifest.parse") {
+				String text;
+				void setUp() throws Exception {
+					text = setupText();
+				}
+				long run() throws Exception {
+					ManifestParser.parse(new StringReader(text), false);
+					return text.length();
+				}
+			},
+			new Bench("manifest.lists") {
+				String text;
+				void setUp() throws Exception {
+					text = setupText();
+				}
+				long run() throws Exception {
+					SetupManifest m = ManifestParser.parse(new StringReader(text), false);
+					for (int c = 0; c < m.getCategoryCount(); c++) {
+						m.getCategoryActions(c);
+						m.getCategoryDescriptions(c);
+					}
+					return text.length();
+				}
+			},
+			new Bench("manifest.large") {
+				String text;
+				void setUp() {
+					text = syntheticManifest(LARGE_COMMANDS, LARGE_OPTIONS);
+				}
+				long run() throws Exception {
+					SetupManifest m = ManifestParser.parse(new StringReader(text), false);
+					for (int c = 0; c < m.getCategoryCount(); c++)
+						m.getCategoryActions(c);
+					return text.length();
+				}
+			},
+			new Bench("console.append") {
+				ConsoleBuffer console;
+				String        chunk;
+				void setUp() {
+					console = new ConsoleBuffer();
+					StringBuilder sb = new StringBuilder();
+					while (sb.length() < APPEND_CHUNK)
+						sb.append("Extracting system/app/SomeApplication.apk\n");
+					chunk = sb.substring(0, APPEND_CHUNK);
+				}
+				long run() {
+					console.append(chunk);
+					return chunk.length();
+				}
+			},
+			new Bench("output.stream") {
+				RootShell     shell;
+				OutputJournal journal;
+				ConsoleBuffer console;
+				long          read;
+				void setUp() {
+					shell = fakeShell();
+				}
+				long run() throws Exception {
+					journal = new OutputJournal(JOURNAL_CHARS);
+					console = new ConsoleBuffer();
+					read    = 0;
+					final long[] bytes = { 0 };
+					final EventParser parser = new EventParser(new EventParser.Listener() {
+						public void onText(String text) {
+							journal.append(text);
+						}
+						public void onEvent(EventParser.Event e) {
+							journal.setProgress(e.getWhat(), e.getPercent());
+						}
+					});
+					// The console catches up on every chunk, the app does it at most every 200 ms
+					shell.run("icetool flood " + STREAM_BYTES, new OutputStreamer.Listener() {
+						public void onOutput(String chunk) {
+							bytes[0] += chunk.length();
+							parser.feed(chunk);
+							StringBuilder text = new StringBuilder();
+							read = journal.read(read, text);
+							console.append(text);
+						}
+					});
+					parser.finish();
+					return bytes[0];
+				}
+				void tearDown() {
+					shell.close();
+				}
+			},
+			new Bench("command.latency") {
+				RootShell shell;
+				void setUp() {
+					shell = fakeShell();
+				}
+				long run() throws Exception {
+					shell.run("icetool ping", DISCARD);
+					return 0;
+				}
+				void tearDown() {
+					shell.close();
+				}
+			},
+			new Bench("command.cold") {
+				long run() throws Exception {
+					RootShell shell = fakeShell();
+					try {
+						shell.run("icetool ping", DISCARD);
+					} finally {
+						shell.close();
+					}
+					return 0;
+				}
+			},
+		};
+	}
+	////////////////////////////////////////////////////////
+
+	// ops, mean / p50 / p99 time per op and throughput when it has bytes
+	String measure(Bench b) throws Exception {
+		b.setUp();
+		try {
+			long end = System.nanoTime() + warmupMs * 1000000;
+			while (System.nanoTime() < end)
+				b.run();
+			ArrayList<Long> times = new ArrayList<Long>();
+			long bytes = 0, start = System.nanoTime();
+			end = start + measureMs * 1000000;
+			long t = start;
+			while (t < end) {
+				bytes += b.run();
+				long now = System.nanoTime();
+				times.add(now - t);
+				t = now;
+			}
+			long total = t - start;
+			long[] sorted = new long[times.size()];
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = times.get(i);
+			Arrays.sort(sorted);
+			return String.format("%-16s %8d %10.3f %10.3f %10.3f %10s", b.name, sorted.length,
+					total / 1e6 / sorted.length, sorted[sorted.length / 2] / 1e6,
+					sorted[(int) (sorted.length * 0.99)] / 1e6,
+					bytes == 0 ? "-" : String.format("%.1f", bytes / (total / 1e9) / (1024 * 1024)));
+		} finally {
+			b.tearDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long warmup = WARMUP_MS, measure = MEASURE_MS;
+		File fake = new File("fake");
+		ArrayList<String> only = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-w") && i + 1 < args.length)
+				warmup = Long.parseLong(args[++i]);
+			else if (args[i].equals("-t") && i + 1 < args.length)
+				measure = Long.parseLong(args[++i]);
+			else if (args[i].equals("-s") && i + 1 < args.length)
+				fake = new File(args[++i]);
+			else if (args[i].startsWith("-")) {
+				System.err.println("Usage: CoreBench [-w <warmup ms>] [-t <measure ms>] [-s <fake dir>] [bench...]");
+				System.exit(2);
+			} else
+				only.add(args[i]);
+		}
+		CoreBench bench = new CoreBench(warmup, measure, fake.getAbsoluteFile());
+		System.out.println(String.format("%-16s %8s %10s %10s %10s %10s",
+				"bench", "ops", "mean ms", "p50 ms", "p99 ms", "MB/s"));
+		for (Bench b : bench.all()) {
+			if (only.isEmpty() || only.contains(b.name))
+				System.out.println(bench.measure(b));
+		}
+	}
+}
@@ -6,17 +6,17 @@ import android.provider.Settings;
 public class ActionsActivity extends ScriptedActivity {
 	public boolean onItemSelected(String itemAction, String itemDescription) {
 
-		ICETool.getInstance().getTabHost().setCurrentTab(ICETool.TAB_CONSOLE);
+		ICETool.getInstance().showConsole();
 
 		// Custom commands here
 
 // The BLN (Backlight Notification) source needs some updates before this will work...
 //		if (itemAction.equals("blnon")) {
 //		  Settings.System.putInt(getContentResolver(), "USE_BUTTONS_ON_NOTIFICATION", 1);
-//		  ICETool.getInstance().getConsoleView().append("BLN enabled" + "\n");
+//		  ICETool.getInstance().getConsole().append("BLN enabled" + "\n");
 //		} else if (itemAction.equals("blnoff")) {
 //		  Settings.System.putInt(getContentResolver(), "USE_BUTTONS_ON_NOTIFICATION", 0);
-//		  ICETool.getInstance().getConsoleView().append("BLN disabled" + "\n");
+//		  ICETool.getInstance().getConsole().append("BLN disabled" + "\n");
 //		}
 
 		return true;
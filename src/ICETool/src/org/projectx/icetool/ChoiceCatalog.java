@@ -0,0 +1,288 @@
+package org.projectx.icetool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.FileObserver;
+
+// Options of the commands whose choices are entries of a directory on
+// the sdcard (ril, gpsconf, bootanim). The manifest only has what was
+// there when icetool setup ran: here the directories are listed once,
+// then kept current with FileObserver, so a RIL or gps.conf set copied
+// meanwhile shows up (and a removed one goes away) with no setup round
+// trip. Entries are validated before being offered (a gps.conf in the
+// directory, a non empty RIL tree, a non empty zip).
+// If a directory can't be read the manifest's options are kept.
+public class ChoiceCatalog {
+	static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM |
+			FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF;
+
+	public interface Listener {
+		// Called on the observer thread
+		void onChoicesChanged(String command);
+	}
+
+	/// Kinds of choices ///////////////////////////////////
+	static abstract class Kind {
+		final String   command;
+		final String   setting;      // Manifest SETTING with the directory
+		final String[] fixed;        // Options that are not entries
+		final boolean  watchEntries; // Validity depends on what is inside them
+
+		Kind(String command, String setting, String[] fixed, boolean watchEntries) {
+			this.command      = command;
+			this.setting      = setting;
+			this.fixed        = fixed;
+			this.watchEntries = watchEntries;
+		}
+
+		abstract boolean isValid(File entry);
+
+		String describe(String name) {
+			return name;
+		}
+	}
+
+	static final Kind RIL = new Kind("ril", "RIL_DIR", new String[] { "showril" }, true) {
+		boolean isValid(File entry) {
+			String[] files = entry.list();
+			return files != null && files.length > 0;
+		}
+	};
+
+	static final Kind GPS = new Kind("gpsconf", "GPS_DIR", new String[0], true) {
+		boolean isValid(File entry) {
+			return new File(entry, "gps.conf").isFile();
+		}
+	};
+
+	static final Kind BOOTANIM = new Kind("bootanim", "BOOTANIM_DIR", new String[0], false) {
+		boolean isValid(File entry) {
+			return entry.isFile() && entry.getName().endsWith(".zip") && entry.length() > 0;
+		}
+		// As icetool setup describes them
+		String describe(String name) {
+			return name.substring(0, name.length() - 4).replace('-', ' ');
+		}
+	};
+
+	static final Kind[] KINDS = { RIL, GPS, BOOTANIM };
+	////////////////////////////////////////////////////////
+
+	// The valid entries of one directory, by name, and their watchers
+	class Index {
+		final Kind                 kind;
+		final File                 dir;
+		volatile boolean           readable = false;
+		final TreeMap<String, String> entries = new TreeMap<String, String>(); // name -> description
+		private FileObserver       dirObserver = null;
+		private final HashMap<String, FileObserver> entryObservers = new HashMap<String, FileObserver>();
+
+		Index(Kind kind, File dir) {
+			this.kind = kind;
+			this.dir  = dir;
+		}
+
+		void start() {
+			dirObserver = new FileObserver(dir.getPath(), EVENTS) {
+				public void onEvent(int event, String path) {
+					if ((event & FileObserver.DELETE_SELF) != 0)
+						rescan();
+					else if (path != null)
+						update(path);
+				}
+			};
+			dirObserver.startWatching();
+			rescan();
+		}
+
+		void stop() {
+			if (dirObserver != null)
+				dirObserver.stopWatching();
+			synchronized (this) {
+				for (FileObserver o : entryObservers.values())
+					o.stopWatching();
+				entryObservers.clear();
+			}
+		}
+
+		// The whole directory, only at start (or when it was removed)
+		void rescan() {
+			String[] names = dir.list();
+			synchronized (this) {
+				readable = names != null;
+				entries.clear();
+			}
+			for (String n : names == null ? new String[0] : names)
+				check(n);
+			changed(kind.command);
+		}
+
+		void update(String name) {
+			if (name.indexOf('/') >= 0)
+				return;
+			if (check(name))
+				changed(kind.command);
+		}
+
+		// Revalidates one entry, true if the list changed
+		private boolean check(String name) {
+			File    entry = new File(dir, name);
+			boolean valid = entry.exists() && kind.isValid(entry);
+			synchronized (this) {
+				readable = true;
+				if (kind.watchEntries)
+					watchEntry(name, entry.isDirectory());
+				if (valid == entries.containsKey(name))
+					return false;
+				if (valid)
+					entries.put(name, kind.describe(name));
+				else
+					entries.remove(name);
+				return true;
+			}
+		}
+
+		// Files added to / removed from an entry make it (in)valid
+		private void watchEntry(final String name, boolean watch) {
+			FileObserver o = entryObservers.get(name);
+			if (watch && o == null) {
+				o = new FileObserver(new File(dir, name).getPath(), EVENTS) {
+					public void onEvent(int event, String path) {
+						update(name);
+					}
+				};
+				o.startWatching();
+				entryObservers.put(name, o);
+			} else if (!watch && o != null) {
+				o.stopWatching();
+				entryObservers.remove(name);
+			}
+		}
+	}
+
+	private final HashMap<String, Index>         indexes   = new HashMap<String, Index>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/// Singleton //////////////////////////////////////////
+	private static ChoiceCatalog INSTANCE = null;
+
+	public synchronized static ChoiceCatalog getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new ChoiceCatalog();
+		}
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	// Watches the directories this manifest names, the index of one
+	// that didn't change is kept
+	public void setManifest(SetupManifest manifest) {
+		for (Kind k : KINDS) {
+			String path = manifest.getSetting(k.setting, null);
+			Index  old, idx = null;
+			synchronized (this) {
+				old = indexes.get(k.command);
+				if (old != null && path != null && old.dir.getPath().equals(path))
+					continue;
+				if (path != null)
+					idx = new Index(k, new File(path));
+				if (idx != null)
+					indexes.put(k.command, idx);
+				else
+					indexes.remove(k.command);
+			}
+			if (old != null)
+				old.stop();
+			if (idx != null)
+				idx.start();
+		}
+	}
+
+	// Whether command's options come from here
+	public synchronized boolean handles(String command) {
+		Index idx = indexes.get(command);
+		return idx != null && idx.readable;
+	}
+
+	// { actions, descriptions } of the command now, as the manifest has
+	// them ("<command> <option>"), null if not handled
+	public String[][] getChoices(SetupManifest manifest, String command) {
+		Index idx;
+		synchronized (this) {
+			idx = indexes.get(command);
+		}
+		if (idx == null)
+			return null;
+		ArrayList<String> actions      = new ArrayList<String>();
+		ArrayList<String> descriptions = new ArrayList<String>();
+		// Fixed options keep their manifest description
+		int      cmd        = manifest.indexOfCommand(command);
+		String[] mOptions   = cmd < 0 ? null : manifest.getOptions(cmd);
+		String[] mDescr     = cmd < 0 ? null : manifest.getDescriptions(cmd);
+		for (String f : idx.kind.fixed) {
+			String d = f;
+			for (int i = 0; mOptions != null && i < mOptions.length; i++) {
+				if (mOptions[i].equals(f) && mDescr != null && i < mDescr.length)
+					d = mDescr[i];
+			}
+			actions.add(command + " " + f);
+			descriptions.add(d);
+		}
+		synchronized (idx) {
+			if (!idx.readable)
+				return null;
+			for (String n : idx.entries.keySet()) {
+				actions.add(command + " " + n);
+				descriptions.add(idx.entries.get(n));
+			}
+		}
+		return new String[][] { actions.toArray(new String[actions.size()]),
+				descriptions.toArray(new String[descriptions.size()]) };
+	}
+
+	// The category as the manifest has it, with the options of the
+	// commands handled here replaced by the current ones
+	public String[][] getCategoryChoices(SetupManifest manifest, String category) {
+		int cat = manifest.indexOfCategory(category);
+		int[] cmds = cat < 0 ? null : manifest.getCategoryCommandIndexes(cat);
+		boolean any = false;
+		for (int i = 0; cmds != null && i < cmds.length; i++)
+			any |= handles(manifest.getCommand(cmds[i]));
+		if (!any)
+			return new String[][] { manifest.getCategoryActions(category),
+					manifest.getCategoryDescriptions(category) };
+
+		ArrayList<String> actions      = new ArrayList<String>();
+		ArrayList<String> descriptions = new ArrayList<String>();
+		for (int c : cmds) {
+			String[][] choices = getChoices(manifest, manifest.getCommand(c));
+			if (choices == null) {
+				String[] a = manifest.getActions(c), d = manifest.getDescriptions(c);
+				choices = new String[][] { a == null ? new String[0] : a, d == null ? a : d };
+			}
+			for (int i = 0; i < choices[0].length; i++) {
+				actions.add(choices[0][i]);
+				descriptions.add(choices[1] != null && i < choices[1].length ? choices[1][i] : choices[0][i]);
+			}
+		}
+		return new String[][] { actions.toArray(new String[actions.size()]),
+				descriptions.toArray(new String[descriptions.size()]) };
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	private void changed(String command) {
+		for (Listener l : listeners)
+			l.onChoicesChanged(command);
+	}
+}
@@ -0,0 +1,53 @@
+package org.projectx.icetool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+// Actions picked (long press) across the tabs, to be run as a single
+// "icetool batch": one root session, one /system remount, grouped
+// output, stops on the first failure.
+public class CommandBatch {
+	static final String CMD_BATCH = "batch";
+
+	private static final ArrayList<String> steps = new ArrayList<String>();
+
+	public synchronized static int add(String action) {
+		steps.add(action);
+		return steps.size();
+	}
+
+	public synchronized static int size() {
+		return steps.size();
+	}
+
+	public synchronized static void clear() {
+		steps.clear();
+	}
+
+	// Returns the pending steps and empties the batch
+	public synchronized static String[] take() {
+		String[] s = steps.toArray(new String[steps.size()]);
+		steps.clear();
+		return s;
+	}
+
+	// batch '<step>' '<step>' ...
+	public static String toCommandLine(String[] steps) {
+		StringBuilder sb = new StringBuilder(CMD_BATCH);
+		for (String s : steps)
+			sb.append(" '").append(s.replace("'", "'\\''")).append('\'');
+		return sb.toString();
+	}
+
+	// Everything any of the steps touches, the batch holds it all
+	public static String[] resourcesOf(CommandScheduler scheduler, String[] steps) {
+		LinkedHashSet<String> res = new LinkedHashSet<String>();
+		for (String s : steps) {
+			for (String r : scheduler.resourcesOf(s))
+				res.add(r);
+		}
+		for (String r : scheduler.resourcesOf(CMD_BATCH))
+			res.add(r);
+		return res.toArray(new String[res.size()]);
+	}
+}
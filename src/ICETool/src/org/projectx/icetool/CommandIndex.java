@@ -0,0 +1,375 @@
+package org.projectx.icetool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.res.Resources;
+
+// Every action of the setup manifest, whatever tab it is on, found by
+// the prefix of any word of its action, command, category or
+// description ("gps eu", "undervolt"). Backs the command palette
+// (CommandPalette). Built when the first manifest is set, then only the
+// commands whose actions changed are indexed again (a new manifest,
+// ChoiceCatalog options). The Actions and UV tabs come from resource
+// arrays, not the manifest: they are indexed once, under their tab name.
+// Results come most used / last used first, uses are remembered in a
+// small file, written in background.
+public class CommandIndex {
+	static final String FILE        = "recent";
+	static final int    MAX_RESULTS = 50;
+	static final int    MAX_RECENT  = 100;
+	static final long   HALF_LIFE   = 7L * 24 * 3600 * 1000; // A use counts half a week later
+	static final String TAB_KEY     = "tab:";   // byCommand key of a static tab
+
+	static class Entry {
+		final String   action;
+		final String   description;
+		final String   command;
+		final String   category;
+		final String[] words;
+
+		Entry(String action, String description, String command, String category) {
+			this.action      = action;
+			this.description = description;
+			this.command     = command;
+			this.category    = category;
+			this.words       = words(action + " " + description + " " + (category == null ? "" : category));
+		}
+	}
+
+	// Uses of one action
+	static class Use {
+		int  count;
+		long last;
+
+		Use(int count, long last) {
+			this.count = count;
+			this.last  = last;
+		}
+
+		double score(long now) {
+			return count * Math.pow(0.5, (double) (now - last) / HALF_LIFE);
+		}
+	}
+
+	private final File file;
+	private final HashMap<String, Entry[]>            byCommand = new HashMap<String, Entry[]>();
+	private final TreeMap<String, ArrayList<Entry>>   byWord    = new TreeMap<String, ArrayList<Entry>>();
+	private final HashMap<String, Use>                uses      = new HashMap<String, Use>(); // action -> uses
+	private HashMap<String, String> categoryOf = new HashMap<String, String>(); // command -> first category
+	private SetupManifest manifest = null;
+	private boolean       loaded   = false;
+	private boolean       savePending = false;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+	public CommandIndex(File file) {
+		this.file = file;
+	}
+
+	/// Singleton //////////////////////////////////////////
+	private static CommandIndex INSTANCE = null;
+
+	public synchronized static CommandIndex getInstance() {
+		if (INSTANCE == null) {
+			ICEApplication app = ICEApplication.getInstance();
+			INSTANCE = new CommandIndex(new File(app.getFilesDir(), FILE));
+			Resources res = app.getResources();
+			INSTANCE.setTab("actions", res.getStringArray(R.array.actions_array),
+					res.getStringArray(R.array.descriptions_array));
+			INSTANCE.setTab("uv", res.getStringArray(R.array.uv_actions_array),
+					res.getStringArray(R.array.uv_descriptions_array));
+			ChoiceCatalog.getInstance().addListener(INSTANCE.choicesListener);
+		}
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	// A tab whose list isn't in the manifest, category is its name
+	public synchronized void setTab(String tab, String[] actions, String[] descriptions) {
+		Entry[] entries = new Entry[actions.length];
+		for (int i = 0; i < actions.length; i++)
+			entries[i] = new Entry(actions[i], i < descriptions.length ? descriptions[i] : actions[i], null, tab);
+		replace(TAB_KEY + tab, entries);
+	}
+
+	// Indexes the commands of this manifest that weren't, or whose
+	// actions changed, and drops those it doesn't have anymore
+	public synchronized void setManifest(SetupManifest manifest) {
+		this.manifest = manifest;
+		categoryOf = new HashMap<String, String>();
+		for (int cat = manifest.getCategoryCount() - 1; cat >= 0; cat--) {
+			int[] cmds = manifest.getCategoryCommandIndexes(cat);
+			for (int i = 0; cmds != null && i < cmds.length; i++)
+				categoryOf.put(manifest.getCommand(cmds[i]), manifest.getCategory(cat));
+		}
+		HashSet<String> gone = new HashSet<String>();
+		for (String command : byCommand.keySet()) {
+			if (!command.startsWith(TAB_KEY))
+				gone.add(command);
+		}
+		for (int c = 0; c < manifest.getCommandCount(); c++) {
+			String command = manifest.getCommand(c);
+			if (manifest.getActions(c) == null)
+				continue;
+			gone.remove(command);
+			index(command);
+		}
+		for (String command : gone)
+			replace(command, null);
+	}
+
+	// The options of a ChoiceCatalog command changed
+	private final ChoiceCatalog.Listener choicesListener = new ChoiceCatalog.Listener() {
+		public void onChoicesChanged(String command) {
+			synchronized (CommandIndex.this) {
+				if (byCommand.containsKey(command))
+					index(command);
+			}
+		}
+	};
+
+	private void index(String command) {
+		String[][] choices = ChoiceCatalog.getInstance().getChoices(manifest, command);
+		if (choices == null)
+			choices = new String[][] { manifest.getCommandOptions(command), manifest.getCommandDescriptions(command) };
+		String[] actions  = choices[0], descriptions = choices[1];
+		String   category = categoryOf.get(command);
+		Entry[]  old      = byCommand.get(command);
+		if (actions == null) {
+			replace(command, null);
+			return;
+		}
+		if (old != null && same(old, actions, descriptions, category))
+			return;
+		Entry[] entries = new Entry[actions.length];
+		for (int i = 0; i < actions.length; i++) {
+			String d = descriptions != null && i < descriptions.length ? descriptions[i] : actions[i];
+			entries[i] = new Entry(actions[i], d, command, category);
+		}
+		replace(command, entries);
+	}
+
+	private static boolean same(Entry[] old, String[] actions, String[] descriptions, String category) {
+		if (old.length != actions.length)
+			return false;
+		for (int i = 0; i < old.length; i++) {
+			String d = descriptions != null && i < descriptions.length ? descriptions[i] : actions[i];
+			if (!old[i].action.equals(actions[i]) || !old[i].description.equals(d) ||
+					!(category == null ? old[i].category == null : category.equals(old[i].category)))
+				return false;
+		}
+		return true;
+	}
+
+	private void replace(String command, Entry[] entries) {
+		Entry[] old = entries == null ? byCommand.remove(command) : byCommand.put(command, entries);
+		for (int i = 0; old != null && i < old.length; i++) {
+			for (String w : old[i].words) {
+				ArrayList<Entry> l = byWord.get(w);
+				l.remove(old[i]);
+				if (l.isEmpty())
+					byWord.remove(w);
+			}
+		}
+		for (int i = 0; entries != null && i < entries.length; i++) {
+			for (String w : entries[i].words) {
+				ArrayList<Entry> l = byWord.get(w);
+				if (l == null) {
+					l = new ArrayList<Entry>(2);
+					byWord.put(w, l);
+				}
+				l.add(entries[i]);
+			}
+		}
+	}
+
+	// Lower case words, each once
+	static String[] words(String text) {
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean in = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (in && start < 0)
+				start = i;
+			else if (!in && start >= 0) {
+				String w = text.substring(start, i).toLowerCase();
+				if (!words.contains(w))
+					words.add(w);
+				start = -1;
+			}
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	/// Search /////////////////////////////////////////////
+	// Entries with a word starting with each word of the query, the
+	// most used first. An empty query gives the recently used ones
+	public synchronized ArrayList<Entry> search(String query) {
+		String[]         q       = words(query);
+		ArrayList<Entry> results = new ArrayList<Entry>();
+		if (q.length == 0) {
+			load();
+			for (Entry[] entries : byCommand.values()) {
+				for (Entry e : entries) {
+					if (uses.containsKey(e.action))
+						results.add(e);
+				}
+			}
+		} else {
+			// Rarest word first, the others only narrow it down
+			ArrayList<HashSet<Entry>> matches = new ArrayList<HashSet<Entry>>();
+			for (String w : q)
+				matches.add(withPrefix(w));
+			Collections.sort(matches, new Comparator<HashSet<Entry>>() {
+				public int compare(HashSet<Entry> a, HashSet<Entry> b) {
+					return a.size() - b.size();
+				}
+			});
+			for (Entry e : matches.get(0)) {
+				boolean all = true;
+				for (int i = 1; all && i < matches.size(); i++)
+					all = matches.get(i).contains(e);
+				if (all)
+					results.add(e);
+			}
+		}
+		rank(results, q);
+		return results.size() > MAX_RESULTS ? new ArrayList<Entry>(results.subList(0, MAX_RESULTS)) : results;
+	}
+
+	private HashSet<Entry> withPrefix(String prefix) {
+		HashSet<Entry> found = new HashSet<Entry>();
+		for (Map.Entry<String, ArrayList<Entry>> w : byWord.tailMap(prefix).entrySet()) {
+			if (!w.getKey().startsWith(prefix))
+				break;
+			found.addAll(w.getValue());
+		}
+		return found;
+	}
+
+	// By uses, then the ones whose action starts with the query, then
+	// alphabetically
+	private void rank(ArrayList<Entry> results, String[] q) {
+		load();
+		final long now = System.currentTimeMillis();
+		final String first = q.length == 0 ? "" : q[0];
+		final HashMap<Entry, Double> scores = new HashMap<Entry, Double>();
+		for (Entry e : results) {
+			Use u = uses.get(e.action);
+			scores.put(e, Double.valueOf(u == null ? 0 : u.score(now)));
+		}
+		Collections.sort(results, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				int c = scores.get(b).compareTo(scores.get(a));
+				if (c != 0)
+					return c;
+				boolean pa = a.action.startsWith(first), pb = b.action.startsWith(first);
+				if (pa != pb)
+					return pa ? -1 : 1;
+				return a.description.compareToIgnoreCase(b.description);
+			}
+		});
+	}
+	////////////////////////////////////////////////////////
+
+	/// Uses ///////////////////////////////////////////////
+	// The action was run (from a tab, the palette or a batch)
+	public synchronized void used(String action) {
+		load();
+		action = action.trim();
+		Use u = uses.get(action);
+		if (u == null) {
+			u = new Use(0, 0);
+			uses.put(action, u);
+		}
+		u.count++;
+		u.last = System.currentTimeMillis();
+		if (uses.size() > MAX_RECENT)
+			forgetLeastUsed();
+		saveLater();
+	}
+
+	private void forgetLeastUsed() {
+		long   now   = System.currentTimeMillis();
+		String worst = null;
+		double min   = Double.MAX_VALUE;
+		for (Map.Entry<String, Use> e : uses.entrySet()) {
+			double s = e.getValue().score(now);
+			if (s < min) {
+				min   = s;
+				worst = e.getKey();
+			}
+		}
+		uses.remove(worst);
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		loaded = true;
+		if (!file.isFile())
+			return;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			try {
+				String l;
+				while ((l = br.readLine()) != null) {
+					String[] f = l.split("\t");
+					if (f.length == 3)
+						uses.put(f[0], new Use(Integer.parseInt(f[1]), Long.parseLong(f[2])));
+				}
+			} finally {
+				br.close();
+			}
+		} catch (Exception e) {
+			// Bad file, start again
+			uses.clear();
+		}
+	}
+
+	// used() runs on the UI thread: the file is written by the writer
+	// thread, once for all the uses that came meanwhile
+	private void saveLater() {
+		if (savePending)
+			return;
+		savePending = true;
+		writer.execute(new Runnable() {
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	private void save() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (this) {
+			savePending = false;
+			for (Map.Entry<String, Use> e : uses.entrySet())
+				sb.append(e.getKey()).append('\t').append(e.getValue().count).append('\t')
+						.append(e.getValue().last).append('\n');
+		}
+		try {
+			FileWriter w = new FileWriter(file);
+			try {
+				w.write(sb.toString());
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			// Only ranking is lost
+		}
+	}
+	////////////////////////////////////////////////////////
+}
@@ -0,0 +1,87 @@
+package org.projectx.icetool;
+
+import java.util.ArrayList;
+
+import android.app.Dialog;
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.Toast;
+
+// Search box over every command of every tab (see CommandIndex), shown
+// with the search key or by typing on a list. The recently used ones
+// are listed before anything is typed. A pick runs at once, as a click
+// on its tab would.
+public class CommandPalette extends Dialog {
+	private final EditText query;
+	private final ListView list;
+	private ArrayList<CommandIndex.Entry> results = new ArrayList<CommandIndex.Entry>();
+
+	public CommandPalette(Context context, String initial) {
+		super(context);
+		setTitle("Run command");
+
+		query = new EditText(context);
+		query.setSingleLine(true);
+		query.setHint("Command, option or description");
+		list = new ListView(context);
+
+		LinearLayout layout = new LinearLayout(context);
+		layout.setOrientation(LinearLayout.VERTICAL);
+		layout.addView(query, new LinearLayout.LayoutParams(
+				LinearLayout.LayoutParams.FILL_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+		layout.addView(list, new LinearLayout.LayoutParams(
+				LinearLayout.LayoutParams.FILL_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+		setContentView(layout);
+		getWindow().setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_STATE_VISIBLE);
+
+		query.setText(initial);
+		query.setSelection(initial.length());
+		query.addTextChangedListener(new TextWatcher() {
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+			public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+			public void afterTextChanged(Editable s) {
+				search(s.toString());
+			}
+		});
+		list.setOnItemClickListener(new OnItemClickListener() {
+			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+				run(results.get(position));
+			}
+		});
+		search(initial);
+	}
+
+	private void search(String text) {
+		results = CommandIndex.getInstance().search(text);
+		String[] labels = new String[results.size()];
+		for (int i = 0; i < labels.length; i++) {
+			CommandIndex.Entry e = results.get(i);
+			labels[i] = e.category == null ? e.description : e.description + " (" + e.category + ")";
+		}
+		list.setAdapter(new ArrayAdapter<String>(getContext(), R.layout.list_item, labels));
+	}
+
+	private void run(CommandIndex.Entry e) {
+		dismiss();
+		Toast.makeText(getContext(), e.description, Toast.LENGTH_SHORT).show();
+		ICETool.getInstance().showConsole();
+		// Actions tab entries that aren't icetool commands
+		if (ScriptedActivity.isSpecialActivity(e.action)) {
+			CommandIndex.getInstance().used(e.action);
+			ScriptedActivity.runSpecialActivity(getContext(), e.action);
+			return;
+		}
+		new ScriptExecuter(getContext()).execute(e.action);
+	}
+}
@@ -0,0 +1,268 @@
+package org.projectx.icetool;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs icetool commands on a small pool. Independent commands run in
+// parallel; commands sharing a resource tag (RESOURCES lines of the
+// setup manifest, i.e. "system" for anything remounting /system) run
+// one at a time, in submission order.
+public class CommandScheduler {
+	static final int MAX_PARALLEL = ShellPool.MAX_SESSIONS;
+
+	public enum Status { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+	// What a job does once it is its turn, returns the exit code
+	public interface Work {
+		int execute(Job job) throws Exception;
+	}
+
+	public interface Listener {
+		// status is the one being announced, the job may already be past it
+		void onStatusChanged(Job job, Status status);
+	}
+
+	public static class Job {
+		private static int lastId = 0;
+
+		final int      id;
+		final String   command;
+		final String[] resources;
+		final Work     work;
+		final Listener listener;
+		final CommandScheduler scheduler;
+		private volatile Status status   = Status.QUEUED;
+		private volatile int    exitCode = -1;
+		final long              submittedAt = System.nanoTime();
+		private volatile long   startedAt   = 0;
+		private volatile long   finishedAt  = 0;
+		private Runnable        cancelHook = null;
+
+		Job(CommandScheduler scheduler, String command, String[] resources, Work work, Listener listener) {
+			synchronized (Job.class) {
+				this.id = ++lastId;
+			}
+			this.scheduler = scheduler;
+			this.command   = command;
+			this.resources = resources;
+			this.work      = work;
+			this.listener  = listener;
+		}
+
+		public int getId() {
+			return id;
+		}
+		public String getCommand() {
+			return command;
+		}
+		public String[] getResources() {
+			return resources;
+		}
+		public Status getStatus() {
+			return status;
+		}
+		public int getExitCode() {
+			return exitCode;
+		}
+		// 0 = next to run, -1 once it left the queue
+		public int getQueuePosition() {
+			return scheduler.positionOf(this);
+		}
+		public boolean cancel() {
+			return scheduler.cancel(this);
+		}
+		// Time spent waiting in the queue (so far, if still there)
+		public long getQueueWaitMillis() {
+			long end = startedAt != 0 ? startedAt : System.nanoTime();
+			return (end - submittedAt) / 1000000;
+		}
+		public long getRunMillis() {
+			if (startedAt == 0)
+				return 0;
+			long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+			return (end - startedAt) / 1000000;
+		}
+		public boolean isCancelled() {
+			return status == Status.CANCELLED;
+		}
+		// Called on cancel() while running, i.e. to kill the shell
+		public synchronized void setCancelHook(Runnable hook) {
+			cancelHook = hook;
+		}
+		private synchronized Runnable getCancelHook() {
+			return cancelHook;
+		}
+
+		private void changed(Status s) {
+			if (listener != null)
+				listener.onStatusChanged(this, s);
+		}
+	}
+
+	private final ExecutorService pool;
+	private final int             maxParallel;
+	private final LinkedList<Job> queue   = new LinkedList<Job>();
+	private final ArrayList<Job>  running = new ArrayList<Job>();
+	private final HashSet<String> busy    = new HashSet<String>();
+	private SetupManifest         manifest = SetupManifest.EMPTY;
+
+	public CommandScheduler(int maxParallel) {
+		this.maxParallel = maxParallel;
+		this.pool        = Executors.newFixedThreadPool(maxParallel);
+	}
+
+	/// Singleton //////////////////////////////////////////
+	private static CommandScheduler INSTANCE = null;
+
+	public synchronized static CommandScheduler getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new CommandScheduler(MAX_PARALLEL);
+		}
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	public synchronized void setManifest(SetupManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	// Resource tags of "<command> <args...>"
+	public synchronized String[] resourcesOf(String commandLine) {
+		String cmd = commandLine.trim();
+		int sp = cmd.indexOf(' ');
+		if (sp > 0)
+			cmd = cmd.substring(0, sp);
+		int idx = manifest.indexOfCommand(cmd);
+		String[] res = idx < 0 ? null : manifest.getResources(idx);
+		return res == null ? new String[0] : res;
+	}
+
+	public Job submit(String commandLine, Work work, Listener listener) {
+		return submit(commandLine, resourcesOf(commandLine), work, listener);
+	}
+
+	public Job submit(String commandLine, String[] resources, Work work, Listener listener) {
+		Job job = new Job(this, commandLine, resources, work, listener);
+		// status starts as QUEUED. Announced before the job can be
+		// dispatched, so nobody hears QUEUED after RUNNING
+		job.changed(Status.QUEUED);
+		synchronized (this) {
+			queue.addLast(job);
+		}
+		dispatch();
+		return job;
+	}
+
+	public synchronized int positionOf(Job job) {
+		return queue.indexOf(job);
+	}
+
+	public synchronized Job[] getJobs() {
+		ArrayList<Job> all = new ArrayList<Job>(running);
+		all.addAll(queue);
+		return all.toArray(new Job[all.size()]);
+	}
+
+	public boolean cancel(Job job) {
+		Runnable hook = null;
+		synchronized (this) {
+			if (queue.remove(job)) {
+				job.status = Status.CANCELLED;
+			} else if (running.contains(job) && !isOver(job.status)) {
+				job.status = Status.CANCELLED;
+				hook = job.getCancelHook();
+			} else {
+				return false;
+			}
+		}
+		if (hook != null)
+			hook.run();
+		job.changed(Status.CANCELLED);
+		return true;
+	}
+
+	public void cancelAll() {
+		for (Job job : getJobs())
+			job.cancel();
+	}
+
+	// Starts every queued job whose resources are free. A job also waits
+	// for earlier queued jobs sharing a resource, so order is kept per resource.
+	private void dispatch() {
+		ArrayList<Job> toStart = new ArrayList<Job>();
+		synchronized (this) {
+			HashSet<String> claimed = new HashSet<String>(busy);
+			Iterator<Job>   it      = queue.iterator();
+			while (it.hasNext() && running.size() + toStart.size() < maxParallel) {
+				Job     job  = it.next();
+				boolean free = true;
+				for (String r : job.resources) {
+					if (claimed.contains(r))
+						free = false;
+				}
+				for (String r : job.resources)
+					claimed.add(r);
+				if (!free)
+					continue;
+				it.remove();
+				for (String r : job.resources)
+					busy.add(r);
+				running.add(job);
+				toStart.add(job);
+			}
+		}
+		for (final Job job : toStart) {
+			pool.execute(new Runnable() {
+				public void run() {
+					runJob(job);
+				}
+			});
+		}
+	}
+
+	private static boolean isOver(Status s) {
+		return s == Status.DONE || s == Status.FAILED || s == Status.CANCELLED;
+	}
+
+	// Status changes here are compare-and-set under the scheduler lock, as
+	// cancel() does them: whoever loses doesn't touch the job, so the
+	// listener hears about each status once
+	private void runJob(Job job) {
+		Status  end = Status.DONE;
+		boolean started;
+		synchronized (this) {
+			started = job.status == Status.QUEUED;
+			if (started) {
+				job.startedAt = System.nanoTime();
+				job.status    = Status.RUNNING;
+			}
+		}
+		if (started) {
+			job.changed(Status.RUNNING);
+			try {
+				job.exitCode = job.work.execute(job);
+				if (job.exitCode != 0)
+					end = Status.FAILED;
+			} catch (Exception e) {
+				end = Status.FAILED;
+			}
+			job.finishedAt = System.nanoTime();
+		}
+		boolean finished;
+		synchronized (this) {
+			running.remove(job);
+			for (String r : job.resources)
+				busy.remove(r);
+			finished = job.status == Status.RUNNING;
+			if (finished)
+				job.status = end;
+		}
+		if (finished)
+			job.changed(end);
+		dispatch();
+	}
+}
@@ -0,0 +1,112 @@
+package org.projectx.icetool;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+// Exit status and timings of one command execution, plus a bounded
+// history of the last ones (shown by the "showstats" action)
+public class CommandStats {
+	static final int    MAX_HISTORY = 200;
+	static final String DUMP_FILE   = "/sdcard/blackice/icetool-stats.tsv";
+	static final String DUMP_HEADER =
+		"id\tcommand\tstatus\texit\tqueue_ms\tspawn_ms\tfirst_byte_ms\twall_ms\tbytes\tfinished_at\n";
+
+	final int    id;
+	final String command;
+	String       status      = "";
+	int          exitCode    = -1;
+	long         queueMs     = 0;   // Submitted -> started
+	long         spawnMs     = 0;   // Getting the shell up and the command written
+	long         firstByteMs = -1;  // Command sent -> first output byte (-1 = no output)
+	long         wallMs      = 0;   // Started -> finished
+	long         bytes       = 0;   // Output size
+	long         finishedAt  = 0;   // System.currentTimeMillis()
+
+	public CommandStats(int id, String command) {
+		this.id      = id;
+		this.command = command;
+	}
+
+	/// History ////////////////////////////////////////////
+	private static final LinkedList<CommandStats> history = new LinkedList<CommandStats>();
+
+	public static void record(CommandStats stats) {
+		stats.finishedAt = System.currentTimeMillis();
+		synchronized (history) {
+			history.addLast(stats);
+			while (history.size() > MAX_HISTORY)
+				history.removeFirst();
+		}
+	}
+
+	public static ArrayList<CommandStats> getHistory() {
+		synchronized (history) {
+			return new ArrayList<CommandStats>(history);
+		}
+	}
+
+	// One tab separated line per execution
+	public static String dump() {
+		StringBuilder sb = new StringBuilder(DUMP_HEADER);
+		for (CommandStats s : getHistory()) {
+			sb.append(s.id).append('\t').append(s.command).append('\t')
+			  .append(s.status).append('\t').append(s.exitCode).append('\t')
+			  .append(s.queueMs).append('\t').append(s.spawnMs).append('\t')
+			  .append(s.firstByteMs).append('\t').append(s.wallMs).append('\t')
+			  .append(s.bytes).append('\t').append(s.finishedAt).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public static void dump(File file) throws IOException {
+		FileWriter w = new FileWriter(file);
+		try {
+			w.write(dump());
+		} finally {
+			w.close();
+		}
+	}
+
+	// Per command name: runs, failures, average and worst wall time
+	public static String summary() {
+		LinkedHashMap<String, long[]> byName = new LinkedHashMap<String, long[]>();
+		for (CommandStats s : getHistory()) {
+			String name = s.command.trim();
+			int sp = name.indexOf(' ');
+			if (sp > 0)
+				name = name.substring(0, sp);
+			long[] a = byName.get(name);
+			if (a == null) {
+				a = new long[5];
+				byName.put(name, a);
+			}
+			a[0]++;
+			if (s.exitCode != 0)
+				a[1]++;
+			a[2] += s.wallMs;
+			a[3] = Math.max(a[3], s.wallMs);
+			a[4] += s.queueMs;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-14s %4s %4s %8s %8s %8s\n",
+				"command", "runs", "fail", "avg ms", "max ms", "queue ms"));
+		for (Map.Entry<String, long[]> e : byName.entrySet()) {
+			long[] a = e.getValue();
+			sb.append(String.format("%-14s %4d %4d %8d %8d %8d\n",
+					e.getKey(), a[0], a[1], a[2] / a[0], a[3], a[4] / a[0]));
+		}
+		return sb.toString();
+	}
+	////////////////////////////////////////////////////////
+
+	public String toString() {
+		return "exit " + exitCode + ", " + wallMs + " ms" +
+				" (queue " + queueMs + ", spawn " + spawnMs +
+				", first byte " + firstByteMs + ", " + bytes + " bytes)";
+	}
+}
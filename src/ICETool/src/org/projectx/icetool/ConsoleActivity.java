@@ -2,25 +2,103 @@ package org.projectx.icetool;
 
 import android.app.Activity;
 import android.os.Bundle;
-import android.text.method.ScrollingMovementMethod;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
+// Shows ICETool's ConsoleBuffer. Only the visible lines get a view,
+// and those are recycled while scrolling. The progress of the running
+// command, when it tells, is shown above the lines.
 public class ConsoleActivity extends Activity {
-	TextView consoleTextView = null;
+	ListView       consoleListView = null;
+	ConsoleAdapter adapter         = null;
+	LinearLayout   progressRow     = null;
+	TextView       progressLabel   = null;
+	ProgressBar    progressBar     = null;
+
     public void onCreate(Bundle savedInstanceState) {
-    	ICETool ap = null;
         super.onCreate(savedInstanceState);
-        consoleTextView = new TextView(this);
-        consoleTextView.setText("");
-        consoleTextView.setMovementMethod(new ScrollingMovementMethod());
-        setContentView(consoleTextView);        
-        ap = ICETool.getInstance();
-        ap.setConsoleView(consoleTextView);
-        consoleTextView.setText(getResources().getText(R.string.app_name) + " " +
-        		ICETool.getInstance().ICETOOL_VERSION +
-        		" by " +
-        		getResources().getText(R.string.app_author) + "\n"                                
-        		);	
-            	
+        ConsoleBuffer console = ICEApplication.getInstance().getConsole();
+        adapter = new ConsoleAdapter(console);
+        consoleListView = new ListView(this);
+        consoleListView.setTranscriptMode(ListView.TRANSCRIPT_MODE_NORMAL);
+        consoleListView.setStackFromBottom(true);
+        consoleListView.setAdapter(adapter);
+
+        progressLabel = new TextView(this);
+        progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(100);
+        progressRow = new LinearLayout(this);
+        progressRow.setOrientation(LinearLayout.VERTICAL);
+        progressRow.addView(progressLabel);
+        progressRow.addView(progressBar, new LinearLayout.LayoutParams(
+        		LinearLayout.LayoutParams.FILL_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(progressRow, new LinearLayout.LayoutParams(
+        		LinearLayout.LayoutParams.FILL_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+        layout.addView(consoleListView, new LinearLayout.LayoutParams(
+        		LinearLayout.LayoutParams.FILL_PARENT, 0, 1));
+        setContentView(layout);
+        console.setListener(adapter);
+        adapter.onProgressChanged();
+    }
+
+    protected void onDestroy() {
+    	ConsoleBuffer console = ICEApplication.getInstance().getConsole();
+    	// The recreated activity may have registered its adapter already
+    	console.removeListener(adapter);
+    	super.onDestroy();
+    }
+
+    class ConsoleAdapter extends BaseAdapter implements ConsoleBuffer.Listener {
+    	private final ConsoleBuffer console;
+
+    	ConsoleAdapter(ConsoleBuffer console) {
+    		this.console = console;
+    	}
+
+		public int getCount() {
+			return console.size();
+		}
+
+		public Object getItem(int position) {
+			return console.getLine(position);
+		}
+
+		public long getItemId(int position) {
+			return position;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			TextView line = (TextView) convertView;
+			if (line == null)
+				line = new TextView(ConsoleActivity.this);
+			line.setText(console.getLine(position));
+			return line;
+		}
+
+		public void onConsoleChanged() {
+			notifyDataSetChanged();
+		}
+
+		public void onProgressChanged() {
+			String label = console.getProgressLabel();
+			if (label == null) {
+				progressRow.setVisibility(View.GONE);
+				return;
+			}
+			int percent = console.getProgressPercent();
+			progressLabel.setText(label);
+			progressBar.setIndeterminate(percent < 0);
+			if (percent >= 0)
+				progressBar.setProgress(percent);
+			progressRow.setVisibility(View.VISIBLE);
+		}
     }
 }
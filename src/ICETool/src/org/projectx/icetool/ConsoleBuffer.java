@@ -0,0 +1,187 @@
+package org.projectx.icetool;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+// Console contents: a fixed size ring of lines, the oldest ones are
+// dropped once full. The last (unterminated) line is kept apart so
+// partial output such as wget progress still shows up.
+// Optionally every finished line is also written to a log file on the
+// sdcard, rotated to <file>.1 once it gets too big.
+// Progress of the running command (from its events) is kept here too,
+// for the progress bar above the lines.
+// Not thread safe, only used from the UI thread.
+public class ConsoleBuffer {
+	static final int    MAX_LINES     = 2000;
+	static final int    MAX_LINE_LEN  = 4096;      // Longer lines are wrapped
+	static final String LOG_FILE      = "/sdcard/blackice/icetool-console.log";
+	static final long   MAX_LOG_SIZE  = 512 * 1024;
+
+	public interface Listener {
+		void onConsoleChanged();
+		void onProgressChanged();
+	}
+
+	private final String[]      lines;
+	private int                 head  = 0;        // Oldest line
+	private int                 count = 0;
+	private final StringBuilder open  = new StringBuilder();
+	private Listener            listener = null;
+
+	private String progressLabel   = null;      // null: nothing running
+	private int    progressPercent = -1;        // -1: unknown
+
+	private File   logFile = null;
+	private Writer log     = null;
+	private long   logSize = 0;
+
+	public ConsoleBuffer(int maxLines) {
+		lines = new String[maxLines];
+	}
+
+	public ConsoleBuffer() {
+		this(MAX_LINES);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// Only if it is still that one: a newer console may have taken over
+	public void removeListener(Listener listener) {
+		if (this.listener == listener)
+			this.listener = null;
+	}
+
+	// Lines shown, including the unterminated one if any
+	public int size() {
+		return count + (open.length() > 0 ? 1 : 0);
+	}
+
+	public String getLine(int i) {
+		if (i == count)
+			return open.toString();
+		return lines[(head + i) % lines.length];
+	}
+
+	public void append(CharSequence text) {
+		int start = 0, len = text.length();
+		for (int i = 0; i < len; i++) {
+			if (text.charAt(i) == '\n') {
+				open.append(text, start, i);
+				addLine();
+				start = i + 1;
+			} else if (open.length() + i - start >= MAX_LINE_LEN) {
+				open.append(text, start, i);
+				addLine();
+				start = i;
+			}
+		}
+		open.append(text, start, len);
+		flushLog();
+		changed();
+	}
+
+	// Old lines are simply forgotten, the slots get overwritten later
+	public void clear() {
+		head  = 0;
+		count = 0;
+		open.setLength(0);
+		changed();
+	}
+
+	private void addLine() {
+		String l = open.toString();
+		open.setLength(0);
+		if (count < lines.length) {
+			lines[(head + count) % lines.length] = l;
+			count++;
+		} else {
+			lines[head] = l;
+			head = (head + 1) % lines.length;
+		}
+		writeLog(l);
+	}
+
+	// label null hides the progress, percent -1 for an unknown one
+	public void setProgress(String label, int percent) {
+		progressLabel   = label;
+		progressPercent = percent;
+		if (listener != null)
+			listener.onProgressChanged();
+	}
+
+	public String getProgressLabel() {
+		return progressLabel;
+	}
+
+	public int getProgressPercent() {
+		return progressPercent;
+	}
+
+	private void changed() {
+		if (listener != null)
+			listener.onConsoleChanged();
+	}
+
+	/// Log file ///////////////////////////////////////////
+	public boolean isLogging() {
+		return log != null;
+	}
+
+	public void startLog(File file) throws IOException {
+		stopLog();
+		File dir = file.getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		logFile = file;
+		logSize = file.length();
+		log     = new FileWriter(file, true);
+	}
+
+	public void stopLog() {
+		if (log == null)
+			return;
+		try {
+			log.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+		log     = null;
+		logFile = null;
+	}
+
+	private void writeLog(String l) {
+		if (log == null)
+			return;
+		try {
+			if (logSize > MAX_LOG_SIZE) {
+				log.close();
+				File old = new File(logFile.getPath() + ".1");
+				old.delete();
+				logFile.renameTo(old);
+				log     = new FileWriter(logFile, false);
+				logSize = 0;
+			}
+			log.write(l);
+			log.write('\n');
+			logSize += l.length() + 1;
+		} catch (IOException e) {
+			// sdcard gone or full, keep the console working
+			stopLog();
+		}
+	}
+
+	private void flushLog() {
+		if (log == null)
+			return;
+		try {
+			log.flush();
+		} catch (IOException e) {
+			stopLog();
+		}
+	}
+	////////////////////////////////////////////////////////
+}
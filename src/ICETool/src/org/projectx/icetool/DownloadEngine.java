@@ -0,0 +1,372 @@
+package org.projectx.icetool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Fetches files over HTTP for extrapkg / extraapk, a few at a time.
+// Data goes to <file>.part and is hashed (MD5) as it is written, an
+// interrupted transfer resumes with a Range request. The file only gets
+// its final name once its MD5 matches, so the script can install it
+// right away ("<cmd> <file> verified").
+// With a PackageStore the file is looked up there first, and what gets
+// downloaded is added to it.
+public class DownloadEngine {
+	static final int  MAX_PARALLEL    = 2;
+	static final int  BUFFER_SIZE     = 16384;
+	static final int  CONNECT_TIMEOUT = 15000;
+	static final int  READ_TIMEOUT    = 30000;
+	static final int  MAX_TRIES       = 3;
+	static final long PROGRESS_STEP   = 10;   // % between progress reports
+	static final String PART_SUFFIX   = ".part";
+
+	public interface Listener {
+		void onProgress(Download d);
+		void onFinished(Download d);
+	}
+
+	public static class Download {
+		final String url;
+		final File   file;
+		final String md5;           // Expected, lowercase hex
+		String       name;
+		PackageStore store  = null;
+		File         legacy = null;  // Same package, outside the store
+		volatile long    size   = -1;  // -1 until the server tells
+		volatile long    done   = 0;
+		volatile boolean ok     = false;
+		volatile boolean resumed = false;
+		volatile String  error  = null;
+		private int      lastReported = -1;
+
+		public Download(String url, File file, String md5) {
+			this.url  = url;
+			this.file = file;
+			this.md5  = md5.toLowerCase();
+			this.name = file.getName();
+		}
+
+		// Downloads into the store, reusing what is there (or in legacy)
+		public Download(String url, String name, String md5, PackageStore store, File legacy) {
+			this(url, store.fileFor(md5), md5);
+			this.name   = name;
+			this.store  = store;
+			this.legacy = legacy;
+		}
+
+		public String getName() {
+			return name;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getDone() {
+			return done;
+		}
+		public boolean isOk() {
+			return ok;
+		}
+		public String getError() {
+			return error;
+		}
+		// 0..100, -1 if size unknown
+		public int getPercent() {
+			return size > 0 ? (int) (done * 100 / size) : -1;
+		}
+	}
+
+	private final ThreadPoolExecutor pool;
+
+	// Path -> lock, so the same file is only fetched by one at a time
+	private static final HashMap<String, Object> fileLocks = new HashMap<String, Object>();
+
+	public DownloadEngine(int maxParallel) {
+		pool = new ThreadPoolExecutor(maxParallel, maxParallel, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+	}
+
+	/// Singleton //////////////////////////////////////////
+	private static DownloadEngine INSTANCE = null;
+
+	// DOWNLOAD_PARALLEL may change with the manifest: the pool follows,
+	// running downloads finish, queued ones get the new size
+	public synchronized static DownloadEngine getInstance(int maxParallel) {
+		if (INSTANCE == null) {
+			INSTANCE = new DownloadEngine(maxParallel);
+		} else {
+			INSTANCE.setMaxParallel(maxParallel);
+		}
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	public void setMaxParallel(int maxParallel) {
+		if (maxParallel == pool.getMaximumPoolSize())
+			return;
+		// Core can't be above max, set them in the order that keeps it so
+		if (maxParallel > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(maxParallel);
+			pool.setCorePoolSize(maxParallel);
+		} else {
+			pool.setCorePoolSize(maxParallel);
+			pool.setMaximumPoolSize(maxParallel);
+		}
+	}
+
+	public void submit(final Download d, final Listener listener) {
+		pool.execute(new Runnable() {
+			public void run() {
+				fetch(d, listener);
+				if (listener != null)
+					listener.onFinished(d);
+			}
+		});
+	}
+
+	// Runs them all (maxParallel at a time), true if all of them made it
+	public boolean fetchAll(Download[] downloads, final Listener listener) throws InterruptedException {
+		final CountDownLatch left = new CountDownLatch(downloads.length);
+		for (Download d : downloads) {
+			submit(d, new Listener() {
+				public void onProgress(Download d) {
+					if (listener != null)
+						listener.onProgress(d);
+				}
+				public void onFinished(Download d) {
+					if (listener != null)
+						listener.onFinished(d);
+					left.countDown();
+				}
+			});
+		}
+		left.await();
+		for (Download d : downloads) {
+			if (!d.ok)
+				return false;
+		}
+		return true;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	// Blocking, on the calling thread
+	public static void fetch(Download d, Listener listener) {
+		// Same file asked twice: the second one waits and finds it done
+		synchronized (lockFor(d.file.getAbsolutePath())) {
+			fetchFile(d, listener);
+		}
+	}
+
+	private static Object lockFor(String path) {
+		synchronized (fileLocks) {
+			Object lock = fileLocks.get(path);
+			if (lock == null) {
+				lock = new Object();
+				fileLocks.put(path, lock);
+			}
+			return lock;
+		}
+	}
+
+	private static void fetchFile(Download d, Listener listener) {
+		File part = new File(d.file.getPath() + PART_SUFFIX);
+		try {
+			// Already there from a previous run
+			if (d.store != null) {
+				if (d.store.get(d.md5) != null) {
+					d.size = d.done = d.file.length();
+					d.ok   = true;
+					return;
+				}
+				if (d.legacy != null && d.legacy.isFile() && d.md5.equals(d.store.md5Of(d.legacy))) {
+					d.store.put(d.legacy, d.md5);
+					d.size = d.done = d.file.length();
+					d.ok   = true;
+					return;
+				}
+			} else if (d.file.isFile()) {
+				if (d.md5.equals(md5Of(d.file))) {
+					d.size = d.done = d.file.length();
+					d.ok   = true;
+					return;
+				}
+				d.file.delete();
+			}
+			File dir = d.file.getParentFile();
+			if (dir != null)
+				dir.mkdirs();
+			for (int tries = 1; ; tries++) {
+				try {
+					String md5 = transfer(d, part, listener);
+					if (md5.equals(d.md5)) {
+						if (!part.renameTo(d.file))
+							throw new IOException("Cannot rename " + part);
+						if (d.store != null)
+							d.store.put(d.file, d.md5);
+						d.ok    = true;
+						d.error = null;
+						return;
+					}
+					// Corrupt, the next try starts over
+					part.delete();
+					d.error = "MD5 mismatch (" + md5 + " != " + d.md5 + ")";
+				} catch (IOException e) {
+					d.error = e.toString();
+				}
+				if (tries >= MAX_TRIES)
+					return;
+			}
+		} catch (IOException e) {
+			d.error = e.toString();
+		}
+	}
+
+	// Appends to part whatever is missing, returns the MD5 of the whole of it
+	private static String transfer(Download d, File part, Listener listener) throws IOException {
+		MessageDigest digest = newDigest();
+		long have = part.isFile() ? part.length() : 0;
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(d.url).openConnection();
+		try {
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			conn.setReadTimeout(READ_TIMEOUT);
+			conn.setRequestProperty("Accept-Encoding", "identity");
+			if (have > 0)
+				conn.setRequestProperty("Range", "bytes=" + have + "-");
+			int code = conn.getResponseCode();
+
+			if (code == 416 && have > 0) {
+				// Nothing left to send, part should be complete
+				d.size = d.done = have;
+				hash(digest, part);
+				return hex(digest.digest());
+			}
+			boolean append = have > 0 && code == HttpURLConnection.HTTP_PARTIAL;
+			if (code != HttpURLConnection.HTTP_OK && !append)
+				throw new IOException("HTTP " + code + " for " + d.url);
+			if (append) {
+				// Bytes already on disk still count for the digest
+				hash(digest, part);
+				d.resumed = true;
+			} else {
+				have = 0;
+			}
+			long len = conn.getContentLength();
+			d.size = len < 0 ? -1 : have + len;
+			d.done = have;
+
+			InputStream in = conn.getInputStream();
+			FileOutputStream out = new FileOutputStream(part, append);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buf)) != -1) {
+					out.write(buf, 0, n);
+					digest.update(buf, 0, n);
+					d.done += n;
+					report(d, listener);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+			if (d.size >= 0 && d.done != d.size)
+				throw new IOException("Short read on " + d.url + " (" + d.done + " of " + d.size + ")");
+			d.size = d.done;
+			return hex(digest.digest());
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static void report(Download d, Listener listener) {
+		if (listener == null)
+			return;
+		int pct = d.getPercent();
+		int step = pct < 0 ? -1 : (int) (pct / PROGRESS_STEP);
+		if (step != d.lastReported) {
+			d.lastReported = step;
+			listener.onProgress(d);
+		}
+	}
+
+	/// MD5 ////////////////////////////////////////////////
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void hash(MessageDigest digest, File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				digest.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static String md5Of(File f) throws IOException {
+		MessageDigest digest = newDigest();
+		hash(digest, f);
+		return hex(digest.digest());
+	}
+
+	static String hex(byte[] b) {
+		char[] digits = "0123456789abcdef".toCharArray();
+		char[] out = new char[b.length * 2];
+		for (int i = 0; i < b.length; i++) {
+			out[i * 2]     = digits[(b[i] >> 4) & 0xf];
+			out[i * 2 + 1] = digits[b[i] & 0xf];
+		}
+		return new String(out);
+	}
+	////////////////////////////////////////////////////////
+
+	// Command line use (i.e. against a local test server):
+	//   DownloadEngine <dir> <url>=<md5> ...
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: DownloadEngine <dir> <url>=<md5> ...");
+			System.exit(2);
+		}
+		ArrayList<Download> all = new ArrayList<Download>();
+		for (int i = 1; i < args.length; i++) {
+			int eq  = args[i].lastIndexOf('=');
+			String url = args[i].substring(0, eq);
+			all.add(new Download(url, new File(args[0], url.substring(url.lastIndexOf('/') + 1)),
+					args[i].substring(eq + 1)));
+		}
+		DownloadEngine engine = new DownloadEngine(MAX_PARALLEL);
+		boolean ok = engine.fetchAll(all.toArray(new Download[all.size()]), new Listener() {
+			public void onProgress(Download d) {
+				System.out.println(d.getName() + ": " + d.getPercent() + "%");
+			}
+			public void onFinished(Download d) {
+				System.out.println(d.getName() + ": " + (d.ok ? "OK" : "FAILED " + d.error) +
+						(d.resumed ? " (resumed)" : ""));
+			}
+		});
+		engine.shutdown();
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,158 @@
+package org.projectx.icetool;
+
+// Splits command output into plain text and event lines. icetool (and
+// the helpers it runs) print events when ICETOOL_EVENTS=1, one per line:
+//
+//   @ICETOOL@ step <what>                    a step starts
+//   @ICETOOL@ end <rc> <what>                a step ended
+//   @ICETOOL@ progress <percent> [<what>]
+//   @ICETOOL@ bytes <done> <total> [<what>]
+//   @ICETOOL@ exit <rc>                      the command is over
+//
+// Output is fed in chunks as it comes, text is handed over right away
+// (partial lines too) except what may be the start of an event line.
+// Unknown or broken event lines are passed as text.
+public class EventParser {
+	static final String PREFIX = "@ICETOOL@ ";
+
+	public static class Event {
+		public static final int STEP     = 0;
+		public static final int END      = 1;
+		public static final int PROGRESS = 2;
+		public static final int EXIT     = 3;
+
+		int    type;
+		String what    = "";
+		int    percent = -1;
+		long   done    = -1;
+		long   total   = -1;
+		int    code    = 0;
+
+		public int getType() {
+			return type;
+		}
+		public String getWhat() {
+			return what;
+		}
+		// 0..100, -1 if unknown
+		public int getPercent() {
+			return percent;
+		}
+		public long getDone() {
+			return done;
+		}
+		public long getTotal() {
+			return total;
+		}
+		public int getCode() {
+			return code;
+		}
+	}
+
+	public interface Listener {
+		void onText(String text);
+		void onEvent(Event event);
+	}
+
+	private final Listener      listener;
+	private final StringBuilder held = new StringBuilder();
+	private boolean             lineStart = true;
+
+	public EventParser(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void feed(String chunk) {
+		held.append(chunk);
+		StringBuilder text = new StringBuilder();
+		int pos = 0, len = held.length();
+		while (pos < len) {
+			int nl = held.indexOf("\n", pos);
+			if (lineStart && startsEvent(pos) && (nl < 0 || nl - pos >= PREFIX.length())) {
+				if (nl < 0)
+					break;      // Wait for the rest of it
+				Event e = parse(held.substring(pos + PREFIX.length(), nl));
+				if (e != null) {
+					flush(text);
+					listener.onEvent(e);
+				} else {
+					text.append(held, pos, nl + 1);
+				}
+				pos = nl + 1;
+				continue;
+			}
+			int end = nl < 0 ? len : nl + 1;
+			text.append(held, pos, end);
+			lineStart = nl >= 0;
+			pos = end;
+		}
+		held.delete(0, pos);
+		flush(text);
+	}
+
+	// Whatever is left when the command is over
+	public void finish() {
+		if (held.length() > 0) {
+			listener.onText(held.toString());
+			held.setLength(0);
+		}
+		lineStart = true;
+	}
+
+	// The line at pos is, or so far could be, an event
+	private boolean startsEvent(int pos) {
+		int n = Math.min(PREFIX.length(), held.length() - pos);
+		for (int i = 0; i < n; i++) {
+			if (held.charAt(pos + i) != PREFIX.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void flush(StringBuilder text) {
+		if (text.length() > 0) {
+			listener.onText(text.toString());
+			text.setLength(0);
+		}
+	}
+
+	static Event parse(String line) {
+		String[] t = line.trim().split(" ", 2);
+		String   rest = t.length > 1 ? t[1].trim() : "";
+		Event    e = new Event();
+		try {
+			if (t[0].equals("step")) {
+				e.type = Event.STEP;
+				e.what = rest;
+			} else if (t[0].equals("end")) {
+				String[] a = rest.split(" ", 2);
+				e.type = Event.END;
+				e.code = Integer.parseInt(a[0]);
+				e.what = a.length > 1 ? a[1] : "";
+				e.percent = 100;
+			} else if (t[0].equals("progress")) {
+				String[] a = rest.split(" ", 2);
+				e.type = Event.PROGRESS;
+				e.percent = Math.max(0, Math.min(100, Integer.parseInt(a[0])));
+				e.what = a.length > 1 ? a[1] : "";
+			} else if (t[0].equals("bytes")) {
+				String[] a = rest.split(" ", 3);
+				e.type = Event.PROGRESS;
+				e.done  = Long.parseLong(a[0]);
+				e.total = Long.parseLong(a[1]);
+				e.percent = e.total > 0 ? (int) Math.min(100, e.done * 100 / e.total) : -1;
+				e.what = a.length > 2 ? a[2] : "";
+			} else if (t[0].equals("exit")) {
+				e.type = Event.EXIT;
+				e.code = Integer.parseInt(rest.split(" ")[0]);
+			} else {
+				return null;
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			return null;
+		}
+		return e;
+	}
+}
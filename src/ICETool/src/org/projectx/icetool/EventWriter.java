@@ -0,0 +1,51 @@
+package org.projectx.icetool;
+
+import java.io.PrintStream;
+
+// Event lines (see EventParser) from the helpers icetool runs through
+// app_process. Only printed when ICETool asked for them (ICETOOL_EVENTS=1),
+// and progress only when the percentage moves.
+public class EventWriter {
+	static final String ENV_EVENTS = "ICETOOL_EVENTS";
+
+	private final PrintStream out;
+	private final boolean     enabled;
+	private int               lastPercent = -1;
+
+	public EventWriter(PrintStream out) {
+		this.out     = out;
+		this.enabled = "1".equals(System.getenv(ENV_EVENTS));
+	}
+
+	public synchronized void step(String what) {
+		lastPercent = -1;
+		emit("step " + what);
+	}
+
+	public synchronized void end(int code, String what) {
+		emit("end " + code + " " + what);
+	}
+
+	public synchronized void bytes(long done, long total, String what) {
+		if (moved(total > 0 ? (int) (done * 100 / total) : -1))
+			emit("bytes " + done + " " + total + " " + what);
+	}
+
+	public synchronized void progress(int done, int total, String what) {
+		int percent = total > 0 ? done * 100 / total : -1;
+		if (moved(percent))
+			emit("progress " + percent + " " + what);
+	}
+
+	private boolean moved(int percent) {
+		if (percent == lastPercent)
+			return false;
+		lastPercent = percent;
+		return true;
+	}
+
+	private void emit(String event) {
+		if (enabled)
+			out.println(EventParser.PREFIX + event);
+	}
+}
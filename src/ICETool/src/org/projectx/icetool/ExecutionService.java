@@ -0,0 +1,103 @@
+package org.projectx.icetool;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+// Keeps the process (and so the commands and their OutputJournal)
+// alive while anything is running: ScriptExecuter holds it for every
+// download and job, it goes foreground with an ongoing notification
+// until the last one is released.
+// Activities bind to it to get the journal, which outlives them.
+public class ExecutionService extends Service {
+	static final int NOTIFICATION_ID = 1;
+
+	public class LocalBinder extends Binder {
+		public OutputJournal getJournal() {
+			return OutputJournal.getInstance();
+		}
+	}
+
+	private final IBinder binder = new LocalBinder();
+
+	/// Holds //////////////////////////////////////////////
+	private static final Handler   mainHandler = new Handler(Looper.getMainLooper());
+	private static int             holds       = 0;
+	private static ExecutionService instance   = null;
+
+	// Something is about to run, from any thread
+	static void hold(Context context) {
+		boolean first;
+		synchronized (ExecutionService.class) {
+			first = holds++ == 0;
+		}
+		if (first)
+			context.getApplicationContext().startService(new Intent(context, ExecutionService.class));
+	}
+
+	// It is over (finished, failed or cancelled), from any thread
+	static void release() {
+		synchronized (ExecutionService.class) {
+			if (holds > 0)
+				holds--;
+		}
+		mainHandler.post(new Runnable() {
+			public void run() {
+				if (instance != null)
+					instance.stopIfIdle();
+			}
+		});
+	}
+
+	private static synchronized boolean isIdle() {
+		return holds == 0;
+	}
+	////////////////////////////////////////////////////////
+
+	public void onCreate() {
+		super.onCreate();
+		instance = this;
+	}
+
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if (!isIdle()) {
+			startForeground(NOTIFICATION_ID, notification());
+		} else {
+			stopIfIdle();
+		}
+		return START_NOT_STICKY;
+	}
+
+	public IBinder onBind(Intent intent) {
+		return binder;
+	}
+
+	public void onDestroy() {
+		instance = null;
+		super.onDestroy();
+	}
+
+	// Still bound activities keep it created, just not in foreground
+	private void stopIfIdle() {
+		if (!isIdle())
+			return;
+		stopForeground(true);
+		stopSelf();
+	}
+
+	private Notification notification() {
+		Notification n = new Notification(R.drawable.icon, getText(R.string.app_name) + ": running",
+				System.currentTimeMillis());
+		n.flags |= Notification.FLAG_ONGOING_EVENT;
+		Intent open = new Intent(this, ICETool.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		n.setLatestEventInfo(this, getText(R.string.app_name), "Running commands, tap for the console",
+				PendingIntent.getActivity(this, 0, open, 0));
+		return n;
+	}
+}
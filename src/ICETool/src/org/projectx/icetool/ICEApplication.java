@@ -0,0 +1,105 @@
+package org.projectx.icetool;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+
+// Process wide state, ready before any activity: the console buffer
+// and its feed from the OutputJournal of ExecutionService, brought to
+// the console at most every SYNC_INTERVAL ms, and the current setup
+// (manifest) that jobs read from pool threads. Activities come and go
+// (tabs rebuilt, rotation), these stay.
+public class ICEApplication extends Application {
+	static final long     SYNC_INTERVAL = 200;
+
+	final ConsoleBuffer   console       = new ConsoleBuffer();
+	private Handler       uiHandler     = null;
+	private OutputJournal journal       = null;
+	private long          journalRead   = 0;        // Position in the journal
+	private boolean       syncPosted    = false;
+	private long          lastSync      = 0;
+	private volatile ICESetup setup     = new ICESetup();
+
+	/// Singleton //////////////////////////////////////////
+	private static ICEApplication INSTANCE = null;
+
+	public static ICEApplication getInstance() {
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	public void onCreate() {
+		long t = StartupTrace.begin();
+		super.onCreate();
+		INSTANCE  = this;
+		uiHandler = new Handler();
+		// Replays what ran so far, then follows it. Never unbound,
+		// the process is gone with us
+		bindService(new Intent(this, ExecutionService.class), connection, Context.BIND_AUTO_CREATE);
+		StartupTrace.end("ICEApplication.onCreate", t);
+	}
+
+	public ConsoleBuffer getConsole() {
+		return console;
+	}
+
+	public ICESetup getSetup() {
+		return setup;
+	}
+
+	// Swapped whole, never changed in place: a job keeps the one it read
+	void setSetup(ICESetup newSetup) {
+		setup = newSetup;
+	}
+
+	/// Journal ////////////////////////////////////////////
+	private final ServiceConnection connection = new ServiceConnection() {
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			journal = ((ExecutionService.LocalBinder) service).getJournal();
+			journal.addListener(journalListener);
+			syncJournal();
+		}
+		public void onServiceDisconnected(ComponentName name) {
+			if (journal != null)
+				journal.removeListener(journalListener);
+			journal = null;
+		}
+	};
+
+	private final OutputJournal.Listener journalListener = new OutputJournal.Listener() {
+		public void onJournalChanged() {
+			long wait;
+			synchronized (ICEApplication.this) {
+				if (syncPosted)
+					return;
+				syncPosted = true;
+				wait = Math.max(0, lastSync + SYNC_INTERVAL - SystemClock.uptimeMillis());
+			}
+			uiHandler.postDelayed(new Runnable() {
+				public void run() {
+					syncJournal();
+				}
+			}, wait);
+		}
+	};
+
+	private void syncJournal() {
+		synchronized (this) {
+			syncPosted = false;
+			lastSync   = SystemClock.uptimeMillis();
+		}
+		if (journal == null)
+			return;
+		StringBuilder text = new StringBuilder();
+		journalRead = journal.read(journalRead, text);
+		if (text.length() > 0)
+			console.append(text);
+		console.setProgress(journal.getProgressLabel(), journal.getProgressPercent());
+	}
+	////////////////////////////////////////////////////////
+}
@@ -1,116 +1,143 @@
 package org.projectx.icetool;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
-import java.util.Hashtable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 
-public class ICESetup {	
-	static final String CMD_SU     = "/system/xbin/su";
+public class ICESetup {
 	static final String CMD_SH = "sh";
 	static final String CMD_SETUP = "/system/bin/icetool setup";
-	
-	// Key tokens
-	static final String STR_ICETOOL_VERSION= "ICETOOL_VERSION:";
-	static final String STR_COMMANDS = "COMMANDS:";
-	static final String STR_CATEGORIES = "CATEGORIES:";
-	static final String STR_CATEGORY_COMMANDS = "CATEGORY_COMMANDS:";
-	static final String STR_OPTIONS = "OPTIONS:";
-	static final String STR_DESCRIPTIONS = "DESCRIPTIONS:";	
-	
+
+	// Manifest cache, valid while icetool and its conf stay untouched
+	static final String CACHE_FILE    = "icetool-setup.cache";
+	static final String CACHE_FORMAT  = "1";
+	static final String CONF_FILE     = "/system/etc/icetool.conf";
+	static final String SCRIPT_FILE   = "/system/bin/icetool";
+	static final String STR_CACHE    = "ICESETUP_CACHE:";
+
 	// Parsed data
-	private      String rawData = "";
-	String allCategories[];	
-	String allCommands[];	
-	Hashtable<String, String[]> categoryCommands = 
-    		new Hashtable<String,String[]>();	
-	Hashtable<String, String[]> cmdOptions = 
-			new Hashtable<String,String[]>();
-    Hashtable<String, String[]> cmdDescriptions = 
-    		new Hashtable<String,String[]>();
-    		
+	private SetupManifest manifest = SetupManifest.EMPTY;
+
+	ICESetup() {
+	}
+
+	ICESetup(SetupManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	// Runs icetool setup, parsing its output as it comes. A failed run
+	// (script missing mid-upgrade, died partway) gives no manifest: what
+	// it printed may be empty or cut short
+	static SetupManifest fetch(boolean keepRaw) throws Exception {
+		final ManifestParser parser = new ManifestParser(keepRaw);
+		int rc = ShellPool.getInstance().run(CMD_SH + " " + CMD_SETUP, new OutputStreamer.Listener() {
+			public void onOutput(String chunk) {
+				parser.feed(chunk);
+			}
+		});
+		SetupManifest manifest = parser.finish();
+		if (rc != 0)
+			throw new IOException(CMD_SETUP + " failed, return value is " + rc);
+		if (manifest.getVersion() == null || manifest.getVersion().length() == 0)
+			throw new IOException(CMD_SETUP + " gave no ICETOOL_VERSION");
+		return manifest;
+	}
+
+	/// Cache //////////////////////////////////////////////
+	// Header: ICESETUP_CACHE:<format>:<version>:<conf mtime>:<script mtime>
+	// followed by the manifest lines themselves
+	private static String cacheKey() {
+		return new File(CONF_FILE).lastModified() + ":" + new File(SCRIPT_FILE).lastModified();
+	}
 
-    private String[] parseSimpleLine(String key, String line) {
-    	String l      = line.substring(key.length()).trim();
-    	return l.split("@");		    			
-    }
-    
-    private void parseArgsLine(Hashtable<String,String[]> hsh, boolean addKeyToValue, String key,  String line) {
-		String l      = line.substring(key.length()).trim(); 
-		String str[]  = l.split(":");
-		String token    = str[0];
-		String tokens[] ;
-		if (str.length < 2) {
-			tokens = new String[1];
-          	tokens[0] = token;
-		} else {
-			tokens = str[1].split("@");
-			if (!cmdOptions.containsKey(token)) {
-				if ( addKeyToValue ) {
-					for (int i=0;i<tokens.length;i++) {
-						if (tokens[i] != null && !tokens[i].isEmpty())
-							tokens[i] = token+" "+tokens[i]; // the command should be in the option too 	
-					}
-				}
+	// Loads the manifest saved by saveCache(), if still valid
+	boolean loadCache(File cache) {
+		if (!cache.isFile())
+			return false;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(cache), 8192);
+			try {
+				String header = br.readLine();
+				if (header == null || !header.startsWith(STR_CACHE))
+					return false;
+				String h[] = header.substring(STR_CACHE.length()).split(":", 3);
+				if (h.length < 3 || !h[0].equals(CACHE_FORMAT) || !h[2].equals(cacheKey()))
+					return false;
+				SetupManifest m = ManifestParser.parse(br, false);
+				if (!m.getVersion().equals(h[1]))
+					return false;
+				manifest = m;
+				return true;
+			} finally {
+				br.close();
 			}
+		} catch (IOException e) {
+			return false;
 		}
-		hsh.put(token, tokens);
-    }
-    
-	String run() throws Exception {
-		String      inputLine = null;
-		
-		Process p = Runtime.getRuntime().exec(CMD_SU);		
-	    DataOutputStream os=new DataOutputStream(p.getOutputStream());
-	    os.writeBytes(CMD_SH + " " + CMD_SETUP + "\n" + "; exit\n"); 
-	    os.flush();
-		BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+	}
+
+	// Needs a manifest parsed with keepRaw
+	void saveCache(File cache) {
+		if (manifest.getRawData() == null)
+			return;
+		File tmp = new File(cache.getPath() + ".tmp");
 		try {
-			while ((inputLine = br.readLine()) != null) {
-				String line = inputLine.trim() + "\n";
-				if (line.startsWith(STR_ICETOOL_VERSION)) {
-					String[] version = parseSimpleLine(STR_ICETOOL_VERSION,line);
-					if (version != null && version.length >= 1)
-					  ICETool.getInstance().ICETOOL_VERSION = version[0];
-				} else if (line.startsWith(STR_COMMANDS))
-					allCommands = parseSimpleLine(STR_COMMANDS,line);
-				else if (line.startsWith(STR_CATEGORIES))
-					allCategories = parseSimpleLine(STR_CATEGORIES,line);
-				else if (line.startsWith(STR_CATEGORY_COMMANDS))
-					parseArgsLine(categoryCommands, false, STR_CATEGORY_COMMANDS, line);
-				else if (line.startsWith(STR_OPTIONS))
-					parseArgsLine(cmdOptions, true, STR_OPTIONS, line);
-				else if (line.startsWith(STR_DESCRIPTIONS))
-					parseArgsLine(cmdDescriptions, false, STR_DESCRIPTIONS, line);
-			
-				rawData += line;
+			FileWriter w = new FileWriter(tmp);
+			try {
+				w.write(STR_CACHE + CACHE_FORMAT + ":" + manifest.getVersion() + ":" + cacheKey() + "\n");
+				w.write(manifest.getRawData());
+			} finally {
+				w.close();
 			}
-		} catch (Exception e) {
-			System.err.println(e.toString());
+			tmp.renameTo(cache);
+		} catch (IOException e) {
+			tmp.delete();
+		}
+	}
+
+	// Re-runs icetool setup. Returns a new ICESetup when the manifest
+	// differs from this one, null when nothing changed. Throws when the
+	// run failed, the cache and this setup are left as they were
+	ICESetup refresh(File cache) throws Exception {
+		ICESetup fresh = new ICESetup(fetch(true));
+		// Always rewritten, the key may have changed with no visible effect
+		fresh.saveCache(cache);
+		if (fresh.manifest.getChecksum() == manifest.getChecksum() &&
+				fresh.getVersion().equals(getVersion())) {
+			return null;
 		}
-		
-		p.waitFor();		
-		return rawData;
+		return fresh;
 	}
+	////////////////////////////////////////////////////////
 
-	
+	public SetupManifest getManifest() {
+		return manifest;
+	}
 	public String getRawData() {
-		return rawData;
+		return manifest.getRawData();
+	}
+	public String getVersion() {
+		return manifest.getVersion();
 	}
 	public boolean hasCategory(String cat) {
-		return categoryCommands.containsKey(cat);
+		return manifest.hasCategory(cat);
 	}
 	public String[] getCategoryCommands(String cat) {
-		return categoryCommands.get(cat);	
-	}	
+		return manifest.getCategoryCommands(cat);
+	}
 	public boolean hasCommand(String cmd) {
-		return cmdOptions.containsKey(cmd);
+		return manifest.hasCommand(cmd);
 	}
-	public String[] getCommandOptions(String cmd) {		
-		return cmdOptions.get(cmd);		
+	public String[] getCommandOptions(String cmd) {
+		return manifest.getCommandOptions(cmd);
 	}
 	public String[] getCommandDescriptions(String cmd) {
-		return cmdDescriptions.get(cmd);
+		return manifest.getCommandDescriptions(cmd);
 	}
-	
+	public String getSetting(String name, String def) {
+		return manifest.getSetting(name, def);
+	}
+
 }
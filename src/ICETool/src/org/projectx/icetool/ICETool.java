@@ -1,17 +1,18 @@
 package org.projectx.icetool;
 
+import java.io.File;
+
 import android.app.TabActivity;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.widget.TabHost;
-import android.widget.TextView;
 import android.widget.Toast;
 
 public class ICETool extends TabActivity {
 	public String ICETOOL_VERSION = ""; // Read from icetool script
 	
-	TextView   consoleView = null;
 	
 	public static final int TAB_ACTIONS = 0;
 	public static final int TAB_APPS    = 1;
@@ -22,20 +23,24 @@ public class ICETool extends TabActivity {
 	public static final int TAB_RIL     = 6;		
 	public static final int TAB_CONSOLE = 7;
 	
-	// Setup class
-	ICESetup setup = new ICESetup();
+	// Running while the cached manifest is shown, null once done
+	private SetupRefresher refresher = null;
 		
+	// Kept by ICEApplication, it outlives this activity
 	public ICESetup getSetup() {
-		return setup;
+		return ICEApplication.getInstance().getSetup();
 	}
 
 	/// Singleton //////////////////////////////////////////
     private static ICETool INSTANCE = null;     
 
+    // The latest one, an older instance is a destroyed activity
     private synchronized static void setInstance(ICETool theInstance) {
-        if (INSTANCE == null) { 
-            INSTANCE = theInstance;
-        }
+        INSTANCE = theInstance;
+    }
+    private synchronized static void clearInstance(ICETool theInstance) {
+        if (INSTANCE == theInstance)
+            INSTANCE = null;
     }
     public static ICETool getInstance() {
         return INSTANCE;
@@ -46,25 +51,108 @@ public class ICETool extends TabActivity {
 	////////////////////////////////////////////////////////
 		
 	public void onCreate(Bundle savedInstanceState) {
+	    long t = StartupTrace.begin();
 	    super.onCreate(savedInstanceState);
 	    setContentView(R.layout.main);
+	    StartupTrace.end("ICETool.setContentView", t);
 	    
 	    // So we an get it later
 	    ICETool.setInstance(this);
 	    
+	    // Tabs are built from the cached manifest right away, then
+	    // icetool setup revalidates it in background
+	    long c = StartupTrace.begin();
+	    File cache = new File(getCacheDir(), ICESetup.CACHE_FILE);
+	    // A new activity (rotation) keeps the setup the process already has
+	    if (getSetup().getManifest() == SetupManifest.EMPTY) {
+	    	ICESetup cached = new ICESetup();
+	    	if (cached.loadCache(cache))
+	    		ICEApplication.getInstance().setSetup(cached);
+	    }
+	    ICESetup setup = getSetup();
+	    if (setup.getManifest() != SetupManifest.EMPTY) {
+	    	ICETOOL_VERSION = setup.getVersion();
+	    	CommandScheduler.getInstance().setManifest(setup.getManifest());
+	    	ChoiceCatalog.getInstance().setManifest(setup.getManifest());
+	    	CommandIndex.getInstance().setManifest(setup.getManifest());
+	    }
+	    StartupTrace.end("ICESetup.loadCache", c);
+	    ConsoleBuffer console = getConsole();
+	    if (console.size() == 0) {
+	    	console.append(getResources().getText(R.string.app_name) + " " + ICETOOL_VERSION +
+	    			" by " + getResources().getText(R.string.app_author) + "\n");
+	    }
+	    long a = StartupTrace.begin();
+	    addTabs();
+	    StartupTrace.end("ICETool.addTabs", a);
+	    refresher = new SetupRefresher(cache);
+	    refresher.execute();
+	    StartupTrace.end("ICETool.onCreate", t);
+	}
+
+	// A refresh still running would set its setup on a destroyed
+	// activity, the new one (rotation) starts its own
+	protected void onDestroy() {
+		if (refresher != null)
+			refresher.cancel(false);
+		clearInstance(this);
+		super.onDestroy();
+	}
+
+	
+	// Swaps in a new manifest and rebuilds the tabs from it
+	void setSetup(ICESetup newSetup) {
+		TabHost tabHost = getTabHost();
+		int current = tabHost.getCurrentTab();
+		ICEApplication.getInstance().setSetup(newSetup);
+		ICETOOL_VERSION = newSetup.getVersion();
+		CommandScheduler.getInstance().setManifest(newSetup.getManifest());
+		ChoiceCatalog.getInstance().setManifest(newSetup.getManifest());
+		CommandIndex.getInstance().setManifest(newSetup.getManifest());
+		tabHost.setCurrentTab(0);
+		tabHost.clearAllTabs();
+		// Otherwise the old activities (and their lists) get reused
+		getLocalActivityManager().removeAllActivities();
+		addTabs();
+		tabHost.setCurrentTab(current);
+	}
+	
+	private class SetupRefresher extends AsyncTask<Void, Void, ICESetup> {
+		private final File cache;
+		private boolean    failed = false;
+		private final long start  = StartupTrace.begin();
+		
+		SetupRefresher(File cache) {
+			this.cache = cache;
+		}
+		
+		protected ICESetup doInBackground(Void... params) {
+			try {
+				return getSetup().refresh(cache);
+			} catch (Exception e) {
+				failed = true;
+				return null;
+			}
+		}
+		
+		protected void onPostExecute(ICESetup result) {
+			refresher = null;
+			StartupTrace.end("ICESetup.refresh", start);
+			if (failed) {
+				Toast.makeText(getApplicationContext(), "icetool error: Cannot read supported commands",
+						Toast.LENGTH_SHORT).show();
+			} else if (result != null) {
+				setSetup(result);
+			}
+		}
+	}
+	
+	private void addTabs() {
 	    Resources res = getResources(); // Resource object to get Drawables
 	    TabHost tabHost = getTabHost();  // The activity TabHost
 	    TabHost.TabSpec spec;  // Reusable TabSpec for each tab
 	    Intent intent;  // Reusable Intent for each tab
-	    
-	    ///// TEST
-	    try {
-	    	setup.run();
-	    } catch (Exception e) {
-			Toast.makeText(getApplicationContext(), "icetool error: Cannot read supported commands",
-					Toast.LENGTH_SHORT).show();				
-	    }
-	    //AssetManager assetManager = getAssets();
+	    ICESetup setup = getSetup();
 	    
 	    // Create an Intent to launch an Activity for the tab (to be reused)
 	    // Actions tab	    
@@ -133,19 +221,25 @@ public class ICETool extends TabActivity {
 	                      res.getDrawable(R.drawable.ic_tab_console))
 	                  .setContent(intent);
 	    tabHost.addTab(spec);
-	    	    	   
-	    // In order to get a consoleView, as ConsoleActivity will
-	    // invoke this.setConsoleView()
-	    tabHost.setCurrentTab(TAB_CONSOLE);
-	    
 	}
 
-	public void setConsoleView(TextView textView) {
-		consoleView = textView;		
+	// The console, whatever tabs the manifest gave
+	public void showConsole() {
+		getTabHost().setCurrentTabByTag("console");
+	}
+
+	// Any command of any tab (see CommandPalette)
+	public void openPalette(String initial) {
+		new CommandPalette(this, initial).show();
+	}
+
+	public boolean onSearchRequested() {
+		openPalette("");
+		return true;
 	}
 
-	public TextView getConsoleView() {
-		return consoleView;
+	public ConsoleBuffer getConsole() {
+		return ICEApplication.getInstance().getConsole();
 	}
 	
 }
@@ -0,0 +1,273 @@
+package org.projectx.icetool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+// Streaming parser for the "icetool setup" protocol:
+//
+//   ICETOOL_VERSION:<version>
+//   COMMANDS:<cmd>@<cmd>@...
+//   CATEGORIES:<cat>@<cat>@...
+//   CATEGORY_COMMANDS:<cat>:<cmd>@<cmd>@...
+//   OPTIONS:<cmd>:<option>@<option>@...
+//   DESCRIPTIONS:<cmd>:<description>@<description>@...
+//   RESOURCES:<cmd>:<tag>@<tag>@...   (shared things the command touches)
+//   SETTING:<NAME>=<value>            (BASE_URL, BASE_DIR, ...)
+//   CHECKSUMS:<cmd>:<file>=<md5>@...  (files the command downloads)
+//   TARGETS:<action>:<src>=<dst>@...  (files the action copies, a "!"
+//                                      value: it also runs something)
+//
+// Text can be fed in chunks of any size as it comes out of the shell,
+// or pulled from a Reader / InputStream. Any other line is ignored.
+public class ManifestParser {
+	// Key tokens
+	static final String STR_ICETOOL_VERSION   = "ICETOOL_VERSION:";
+	static final String STR_COMMANDS          = "COMMANDS:";
+	static final String STR_CATEGORIES        = "CATEGORIES:";
+	static final String STR_CATEGORY_COMMANDS = "CATEGORY_COMMANDS:";
+	static final String STR_OPTIONS           = "OPTIONS:";
+	static final String STR_DESCRIPTIONS      = "DESCRIPTIONS:";
+	static final String STR_RESOURCES         = "RESOURCES:";
+	static final String STR_SETTING           = "SETTING:";
+	static final String STR_CHECKSUMS         = "CHECKSUMS:";
+	static final String STR_TARGETS           = "TARGETS:";
+
+	private final boolean       keepRaw;
+	private final StringBuilder raw;
+	private final StringBuilder line   = new StringBuilder(256);
+	private final CRC32         crc    = new CRC32();
+	private final ArrayList<String> tokens = new ArrayList<String>();
+
+	private String version = "";
+	private final HashMap<String, Integer> commandIds  = new HashMap<String, Integer>();
+	private final ArrayList<String>        commands    = new ArrayList<String>();
+	private final ArrayList<String[]>      options     = new ArrayList<String[]>();
+	private final ArrayList<String[]>      actions     = new ArrayList<String[]>();
+	private final ArrayList<String[]>      descriptions = new ArrayList<String[]>();
+	private final ArrayList<String[]>      resources   = new ArrayList<String[]>();
+	private int                            supported   = 0;
+	private final HashMap<String, Integer> categoryIds = new HashMap<String, Integer>();
+	private final ArrayList<String>        categories  = new ArrayList<String>();
+	private final ArrayList<int[]>         categoryCommands = new ArrayList<int[]>();
+	private final HashMap<String, String>  settings    = new HashMap<String, String>();
+	private final HashMap<String, String>  checksums   = new HashMap<String, String>();
+	private final HashMap<String, String[]> targets    = new HashMap<String, String[]>();
+
+	// keepRaw: also keep the manifest lines (needed to write a cache)
+	public ManifestParser(boolean keepRaw) {
+		this.keepRaw = keepRaw;
+		this.raw     = keepRaw ? new StringBuilder(4096) : null;
+	}
+
+	public static SetupManifest parse(Reader in, boolean keepRaw) throws IOException {
+		ManifestParser p = new ManifestParser(keepRaw);
+		char[] buf = new char[4096];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			p.feed(buf, 0, n);
+		return p.finish();
+	}
+
+	public static SetupManifest parse(InputStream in, boolean keepRaw) throws IOException {
+		return parse(new InputStreamReader(in, "UTF-8"), keepRaw);
+	}
+
+	public void feed(CharSequence chunk) {
+		for (int i = 0, len = chunk.length(); i < len; i++)
+			feed(chunk.charAt(i));
+	}
+
+	public void feed(char[] buf, int off, int len) {
+		for (int i = off, end = off + len; i < end; i++)
+			feed(buf[i]);
+	}
+
+	private void feed(char c) {
+		if (c == '\n') {
+			parseLine();
+			line.setLength(0);
+		} else {
+			line.append(c);
+		}
+	}
+
+	public SetupManifest finish() {
+		if (line.length() > 0) {
+			parseLine();
+			line.setLength(0);
+		}
+		int n = commands.size();
+		int[][] catCmds = categoryCommands.toArray(new int[categories.size()][]);
+		return new SetupManifest(version, crc.getValue(), keepRaw ? raw.toString() : null,
+				commands.toArray(new String[n]), supported,
+				options.toArray(new String[n][]), actions.toArray(new String[n][]),
+				descriptions.toArray(new String[n][]), resources.toArray(new String[n][]),
+				categories.toArray(new String[categories.size()]), catCmds,
+				new HashMap<String, String>(settings), new HashMap<String, String>(checksums),
+				new HashMap<String, String[]>(targets));
+	}
+
+	private void parseLine() {
+		int start = 0, end = line.length();
+		while (start < end && line.charAt(start) <= ' ')
+			start++;
+		while (end > start && line.charAt(end - 1) <= ' ')
+			end--;
+		if (start == end)
+			return;
+		String l = line.substring(start, end);
+
+		if (l.startsWith(STR_ICETOOL_VERSION)) {
+			split(l, STR_ICETOOL_VERSION.length(), l.length());
+			if (tokens.size() >= 1)
+				version = tokens.get(0);
+		} else if (l.startsWith(STR_COMMANDS)) {
+			split(l, STR_COMMANDS.length(), l.length());
+			for (String t : tokens)
+				commandId(t);
+			supported = Math.max(supported, commands.size());
+		} else if (l.startsWith(STR_CATEGORIES)) {
+			split(l, STR_CATEGORIES.length(), l.length());
+			for (String t : tokens)
+				categoryId(t);
+		} else if (l.startsWith(STR_CATEGORY_COMMANDS)) {
+			int cat = categoryId(argsKey(l, STR_CATEGORY_COMMANDS));
+			String[] cmds = argsValues(l, STR_CATEGORY_COMMANDS);
+			int[] idx = new int[cmds.length];
+			for (int i = 0; i < cmds.length; i++)
+				idx[i] = commandId(cmds[i]);
+			categoryCommands.set(cat, idx);
+		} else if (l.startsWith(STR_OPTIONS)) {
+			String cmdName = argsKey(l, STR_OPTIONS);
+			int cmd = commandId(cmdName);
+			String[] opts = argsValues(l, STR_OPTIONS);
+			String[] acts = opts;
+			if (hasValues(l, STR_OPTIONS)) {
+				// the command should be in the option too
+				acts = new String[opts.length];
+				for (int i = 0; i < opts.length; i++)
+					acts[i] = opts[i].length() == 0 ? opts[i] : cmdName + " " + opts[i];
+			}
+			options.set(cmd, opts);
+			actions.set(cmd, acts);
+		} else if (l.startsWith(STR_DESCRIPTIONS)) {
+			int cmd = commandId(argsKey(l, STR_DESCRIPTIONS));
+			descriptions.set(cmd, argsValues(l, STR_DESCRIPTIONS));
+		} else if (l.startsWith(STR_RESOURCES)) {
+			int cmd = commandId(argsKey(l, STR_RESOURCES));
+			String[] tags = new String[0];
+			if (hasValues(l, STR_RESOURCES)) {
+				tags = argsValues(l, STR_RESOURCES);
+				for (int i = 0; i < tags.length; i++)
+					tags[i] = tags[i].intern();
+			}
+			resources.set(cmd, tags);
+		} else if (l.startsWith(STR_SETTING)) {
+			// Whole line, values may well contain ':' (URLs)
+			int eq = l.indexOf('=', STR_SETTING.length());
+			if (eq < 0)
+				return;
+			settings.put(l.substring(STR_SETTING.length(), eq), l.substring(eq + 1));
+		} else if (l.startsWith(STR_CHECKSUMS)) {
+			String cmdName = argsKey(l, STR_CHECKSUMS);
+			commandId(cmdName);
+			if (hasValues(l, STR_CHECKSUMS)) {
+				// Keyed by action, "<cmd> <file>"
+				for (String v : argsValues(l, STR_CHECKSUMS)) {
+					int eq = v.indexOf('=');
+					if (eq > 0)
+						checksums.put(cmdName + " " + v.substring(0, eq), v.substring(eq + 1));
+				}
+			}
+		} else if (l.startsWith(STR_TARGETS)) {
+			// Keyed by action, not command ("bootanim <file>")
+			if (hasValues(l, STR_TARGETS))
+				targets.put(argsKey(l, STR_TARGETS), argsValues(l, STR_TARGETS));
+		} else {
+			return;
+		}
+
+		// Both bytes of each char, update(int) only takes the low one
+		for (int i = 0; i < l.length(); i++) {
+			char c = l.charAt(i);
+			crc.update(c >> 8);
+			crc.update(c);
+		}
+		crc.update('\n');
+		if (keepRaw)
+			raw.append(l).append('\n');
+	}
+
+	/// <key>:<id>:<v>@<v>... //////////////////////////////
+	private static String argsKey(String l, String key) {
+		int colon = l.indexOf(':', key.length());
+		return colon < 0 ? l.substring(key.length()) : l.substring(key.length(), colon);
+	}
+
+	// Values stop at the next ':' (that's how they always were split)
+	private static int valuesEnd(String l, int from) {
+		int colon = l.indexOf(':', from);
+		return colon < 0 ? l.length() : colon;
+	}
+
+	private static boolean hasValues(String l, String key) {
+		int colon = l.indexOf(':', key.length());
+		return colon >= 0 && valuesEnd(l, colon + 1) > colon + 1;
+	}
+
+	// No value at all means the command itself is the only one
+	private String[] argsValues(String l, String key) {
+		if (!hasValues(l, key))
+			return new String[] { argsKey(l, key).intern() };
+		int from = l.indexOf(':', key.length()) + 1;
+		split(l, from, valuesEnd(l, from));
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	// Splits l[from,to) on '@', dropping trailing empty tokens
+	private void split(String l, int from, int to) {
+		tokens.clear();
+		int last = 0;
+		while (from <= to) {
+			int at = l.indexOf('@', from);
+			if (at < 0 || at > to)
+				at = to;
+			tokens.add(l.substring(from, at));
+			if (at > from)
+				last = tokens.size();
+			from = at + 1;
+		}
+		while (tokens.size() > last)
+			tokens.remove(tokens.size() - 1);
+	}
+
+	private int commandId(String cmd) {
+		Integer i = commandIds.get(cmd);
+		if (i != null)
+			return i.intValue();
+		i = Integer.valueOf(commands.size());
+		commandIds.put(cmd, i);
+		commands.add(cmd.intern());
+		options.add(null);
+		actions.add(null);
+		descriptions.add(null);
+		resources.add(null);
+		return i.intValue();
+	}
+
+	private int categoryId(String cat) {
+		Integer i = categoryIds.get(cat);
+		if (i != null)
+			return i.intValue();
+		i = Integer.valueOf(categories.size());
+		categoryIds.put(cat, i);
+		categories.add(cat.intern());
+		categoryCommands.add(null);
+		return i.intValue();
+	}
+}
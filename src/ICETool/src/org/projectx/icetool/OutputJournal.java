@@ -0,0 +1,100 @@
+package org.projectx.icetool;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Output of every command run, with the progress of the running one,
+// kept for the whole process (see ExecutionService) and not for the
+// activities showing it. Positions are absolute: a console remembers
+// up to where it has read and asks for the rest, so one created again
+// (rotation, app switch) replays it all from 0.
+// Only the last MAX_CHARS are kept, older output is dropped whole lines
+// at a time. Written from any thread.
+public class OutputJournal {
+	static final int MAX_CHARS = 256 * 1024;
+
+	public interface Listener {
+		// Called on the writing thread, keep it short
+		void onJournalChanged();
+	}
+
+	private final int           maxChars;
+	private final StringBuilder text  = new StringBuilder();
+	private long                start = 0;        // Position of text[0]
+	private String              progressLabel   = null;
+	private int                 progressPercent = -1;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public OutputJournal(int maxChars) {
+		this.maxChars = maxChars;
+	}
+
+	/// Singleton //////////////////////////////////////////
+	private static OutputJournal INSTANCE = null;
+
+	public synchronized static OutputJournal getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new OutputJournal(MAX_CHARS);
+		}
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	public void append(String chunk) {
+		if (chunk.length() == 0)
+			return;
+		synchronized (this) {
+			text.append(chunk);
+			if (text.length() > maxChars) {
+				// Down to half, so this doesn't happen on every append
+				int cut = text.length() - maxChars / 2;
+				int nl  = text.indexOf("\n", cut);
+				cut = nl < 0 ? cut : nl + 1;
+				text.delete(0, cut);
+				start += cut;
+			}
+		}
+		changed();
+	}
+
+	// Appends to out everything from position on (from the oldest kept
+	// if that is gone), returns the position to read from next time
+	public synchronized long read(long position, StringBuilder out) {
+		long from = Math.max(position, start);
+		if (from < start + text.length())
+			out.append(text, (int) (from - start), text.length());
+		return start + text.length();
+	}
+
+	// label null when nothing is running, percent -1 for an unknown one
+	public void setProgress(String label, int percent) {
+		synchronized (this) {
+			if (percent == progressPercent &&
+					(label == null ? progressLabel == null : label.equals(progressLabel)))
+				return;
+			progressLabel   = label;
+			progressPercent = percent;
+		}
+		changed();
+	}
+
+	public synchronized String getProgressLabel() {
+		return progressLabel;
+	}
+
+	public synchronized int getProgressPercent() {
+		return progressPercent;
+	}
+
+	public void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	private void changed() {
+		for (Listener l : listeners)
+			l.onJournalChanged();
+	}
+}
@@ -0,0 +1,180 @@
+package org.projectx.icetool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+// Reads process output in big chunks and hands it over in batches,
+// so the UI thread gets a handful of updates instead of one per char.
+// A batch is flushed when it grows past FLUSH_SIZE, when FLUSH_INTERVAL
+// has passed, or when the process has nothing more to say right now
+// (that keeps wget-style progress lines without '\n' showing up promptly)
+public class OutputStreamer {
+	static final int  READ_BUFSIZE   = 4096;
+	static final int  FLUSH_SIZE     = 8192;
+	static final long FLUSH_INTERVAL = 50; // ms
+
+	public interface Listener {
+		void onOutput(String chunk);
+	}
+
+	private final Listener       listener;
+	private final Charset        charset;
+	private final CharsetDecoder decoder;
+	private final StringBuilder  pending  = new StringBuilder(FLUSH_SIZE);
+	private long                 lastFlush = 0;
+
+	// Instrumentation
+	private long firstByteAt = 0;   // System.nanoTime()
+	private long bytesRead   = 0;
+
+	// Sentinel mode (shared shell sessions)
+	private String  sentinel   = null;
+	private int     sentinelAt = -1;
+	private String  exitToken  = null;
+
+	public OutputStreamer(Listener listener) {
+		this.listener = listener;
+		this.charset  = Charset.defaultCharset();
+		this.decoder  = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	// Pumps the whole stream until EOF
+	public void stream(InputStream in) throws IOException {
+		sentinel = null;
+		pump(in);
+	}
+
+	// Pumps the stream until a line containing "<sentinel><rc>" shows up.
+	// Nothing from the sentinel on is passed to the listener; the stream
+	// is left open for the next command. Returns rc.
+	public int stream(InputStream in, String sentinel) throws IOException {
+		this.sentinel   = sentinel;
+		this.sentinelAt = -1;
+		this.exitToken  = null;
+		if (!pump(in))
+			throw new EOFException("Shell closed before command completion");
+		try {
+			return Integer.parseInt(exitToken.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Returns true when it stopped on the sentinel, false on EOF
+	private boolean pump(InputStream in) throws IOException {
+		byte[]     raw   = new byte[READ_BUFSIZE];
+		ByteBuffer bytes = ByteBuffer.wrap(raw);
+		CharBuffer chars = CharBuffer.allocate(READ_BUFSIZE);
+		int        n;
+
+		lastFlush = System.currentTimeMillis();
+		while ((n = in.read(raw, bytes.position(), raw.length - bytes.position())) != -1) {
+			if (firstByteAt == 0 && n > 0)
+				firstByteAt = System.nanoTime();
+			bytesRead += n;
+			bytes.limit(bytes.position() + n);
+			bytes.position(0);
+			decode(bytes, chars, false);
+			// Keep an incomplete multibyte sequence for the next read
+			bytes.compact();
+
+			if (sentinel != null && findSentinel(bytes.position())) {
+				flush(pending.length());
+				return true;
+			}
+			int ready = flushableLength();
+			if (shouldFlush(in, ready))
+				flush(ready);
+		}
+		bytes.flip();
+		decode(bytes, chars, true);
+		flush(pending.length());
+		return false;
+	}
+
+	public long getFirstByteAt() {
+		return firstByteAt;
+	}
+
+	public long getBytesRead() {
+		return Math.max(0, bytesRead);
+	}
+
+	private void decode(ByteBuffer bytes, CharBuffer chars, boolean endOfInput) {
+		decoder.decode(bytes, chars, endOfInput);
+		if (endOfInput)
+			decoder.flush(chars);
+		chars.flip();
+		pending.append(chars);
+		chars.clear();
+	}
+
+	// Cuts pending at the sentinel once its whole line has arrived.
+	// undecoded: bytes read but still waiting for the rest of a char
+	private boolean findSentinel(int undecoded) {
+		int idx = pending.indexOf(sentinel, Math.max(0, sentinelAt));
+		if (idx < 0)
+			return false;
+		int nl = pending.indexOf("\n", idx);
+		if (nl < 0) {
+			sentinelAt = idx;
+			return false;
+		}
+		exitToken = pending.substring(idx + sentinel.length(), nl);
+		// The sentinel line is not command output. bytesRead counts bytes,
+		// what follows idx is chars: back to bytes as they were read
+		bytesRead -= pending.substring(idx).getBytes(charset).length + undecoded;
+		if (idx == 0 && bytesRead <= 0)
+			firstByteAt = 0;
+		pending.setLength(idx);
+		return true;
+	}
+
+	// Everything but a trailing piece that may be the start of the sentinel
+	private int flushableLength() {
+		int len = pending.length();
+		if (sentinel == null)
+			return len;
+		if (sentinelAt >= 0)
+			return sentinelAt;
+		int keep = Math.min(len, sentinel.length() - 1);
+		for (; keep > 0; keep--) {
+			int i = 0;
+			while (i < keep && pending.charAt(len - keep + i) == sentinel.charAt(i))
+				i++;
+			if (i == keep)
+				break;
+		}
+		return len - keep;
+	}
+
+	private boolean shouldFlush(InputStream in, int ready) throws IOException {
+		if (ready == 0)
+			return false;
+		if (ready >= FLUSH_SIZE)
+			return true;
+		if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL)
+			return true;
+		// Nothing else queued on the pipe, the next read would block
+		return in.available() == 0;
+	}
+
+	private void flush(int upTo) {
+		lastFlush = System.currentTimeMillis();
+		if (upTo == 0)
+			return;
+		String chunk = pending.substring(0, upTo);
+		pending.delete(0, upTo);
+		if (sentinelAt >= 0)
+			sentinelAt -= upTo;
+		listener.onOutput(chunk);
+	}
+}
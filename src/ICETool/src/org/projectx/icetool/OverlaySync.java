@@ -0,0 +1,216 @@
+package org.projectx.icetool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Copies an overlay tree (sdcard) onto its destination (/system, /data),
+// only the files that changed. A file is unchanged when size and mtime
+// match, or, with checkContent, when size and MD5 match. Copies run on a
+// few worker threads with channel transfers. Existing files keep their
+// mode and owner, new ones get the source's (see copy()).
+//
+// Runs as root from icetool (see Overlay there):
+//   CLASSPATH=<ICETool.apk> app_process /system/bin org.projectx.icetool.OverlaySync \
+//       [-n] [-c] [-j <threads>] <src> <dst>
+//
+//   -n  only report what would be copied
+//   -c  compare content (MD5) instead of mtime
+//   -j  worker threads (default 3)
+public class OverlaySync {
+	static final int    THREADS    = 3;
+	static final String TMP_SUFFIX = ".icetmp";
+
+	private final boolean     checkContent;
+	private final boolean     dryRun;
+	private final PrintStream out;
+	private final EventWriter events;
+	private final ExecutorService pool;
+	private String name = "";
+
+	final AtomicInteger copied  = new AtomicInteger();
+	final AtomicInteger skipped = new AtomicInteger();
+	final AtomicInteger failed  = new AtomicInteger();
+	final AtomicLong    bytes   = new AtomicLong();
+	final AtomicInteger queued  = new AtomicInteger();
+
+	public OverlaySync(int threads, boolean checkContent, boolean dryRun, PrintStream out) {
+		this.checkContent = checkContent;
+		this.dryRun       = dryRun;
+		this.out          = out;
+		this.events       = new EventWriter(out);
+		this.pool         = Executors.newFixedThreadPool(threads);
+	}
+
+	// Blocks until everything is copied, true if nothing failed
+	public boolean sync(File src, File dst) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		name = "overlay " + src;
+		events.step(name);
+		walk(src, dst);
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		events.end(failed.get() == 0 ? 0 : 1, name);
+		out.println("Overlay " + src + " -> " + dst + ": " +
+				copied + (dryRun ? " to copy" : " copied") + " (" + bytes + " bytes), " +
+				skipped + " unchanged, " + failed + " failed in " +
+				(System.currentTimeMillis() - start) + " ms");
+		return failed.get() == 0;
+	}
+
+	// Directories are made here, on the walking thread, files are queued
+	private void walk(File src, File dst) {
+		String[] names = src.list();
+		if (names == null) {
+			fail(src, "cannot list");
+			return;
+		}
+		if (!dryRun && !dst.isDirectory() && !dst.mkdirs()) {
+			fail(dst, "cannot create directory");
+			return;
+		}
+		for (String name : names) {
+			final File s = new File(src, name);
+			final File d = new File(dst, name);
+			if (s.isDirectory()) {
+				walk(s, d);
+			} else {
+				queued.incrementAndGet();
+				pool.execute(new Runnable() {
+					public void run() {
+						syncFile(s, d);
+					}
+				});
+			}
+		}
+	}
+
+	private void syncFile(File s, File d) {
+		try {
+			syncOne(s, d);
+		} finally {
+			events.progress(copied.get() + skipped.get() + failed.get(), queued.get(), name);
+		}
+	}
+
+	private void syncOne(File s, File d) {
+		try {
+			if (unchanged(s, d)) {
+				skipped.incrementAndGet();
+				return;
+			}
+			if (!dryRun)
+				copy(s, d);
+			copied.incrementAndGet();
+			bytes.addAndGet(s.length());
+			out.println((dryRun ? "  would copy " : "  ") + d);
+		} catch (IOException e) {
+			fail(s, e.getMessage());
+		}
+	}
+
+	private boolean unchanged(File s, File d) throws IOException {
+		if (!d.isFile() || d.length() != s.length())
+			return false;
+		if (checkContent)
+			return DownloadEngine.md5Of(s).equals(DownloadEngine.md5Of(d));
+		// FAT sdcards keep 2 seconds of precision
+		return Math.abs(d.lastModified() - s.lastModified()) < 2000;
+	}
+
+	// An existing file is written over in place, so it keeps its inode,
+	// mode and owner (0644 root:root, setuid...) as with cp. A new one is
+	// written to a temporary file that gets the source's mode and owner
+	// before it is renamed into place
+	static void copy(File s, File d) throws IOException {
+		boolean exists = d.isFile();
+		File    target = exists ? d : new File(d.getPath() + TMP_SUFFIX);
+		FileChannel in  = new FileInputStream(s).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try {
+				long size = in.size(), pos = 0;
+				while (pos < size)
+					pos += in.transferTo(pos, size - pos, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			if (!exists)
+				target.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		target.setLastModified(s.lastModified());
+		if (exists)
+			return;
+		try {
+			copyMode(s, target);
+		} catch (IOException e) {
+			target.delete();
+			throw e;
+		}
+		if (!target.renameTo(d)) {
+			target.delete();
+			throw new IOException("cannot rename " + target);
+		}
+	}
+
+	// Owner first, chown drops setuid bits
+	private static void copyMode(File s, File d) throws IOException {
+		Process p = new ProcessBuilder("sh", "-c",
+				"chown `stat -c %u:%g \"$0\"` \"$1\" && chmod `stat -c %a \"$0\"` \"$1\"",
+				s.getPath(), d.getPath()).redirectErrorStream(true).start();
+		p.getOutputStream().close();
+		StringBuilder msg = new StringBuilder();
+		byte[] buf = new byte[256];
+		int n;
+		while ((n = p.getInputStream().read(buf)) != -1)
+			msg.append(new String(buf, 0, n));
+		try {
+			if (p.waitFor() != 0)
+				throw new IOException("cannot set mode of " + d + ": " + msg.toString().trim());
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted setting mode of " + d);
+		}
+	}
+
+	private void fail(File f, String why) {
+		failed.incrementAndGet();
+		out.println("  FAILED " + f + ": " + why);
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean checkContent = false, dryRun = false;
+		int     threads = THREADS;
+		String  src = null, dst = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n"))
+				dryRun = true;
+			else if (args[i].equals("-c"))
+				checkContent = true;
+			else if (args[i].equals("-j") && i + 1 < args.length)
+				threads = Math.max(1, Integer.parseInt(args[++i]));
+			else if (src == null)
+				src = args[i];
+			else
+				dst = args[i];
+		}
+		if (src == null || dst == null || !new File(src).isDirectory()) {
+			System.err.println("Usage: OverlaySync [-n] [-c] [-j <threads>] <src dir> <dst dir>");
+			System.exit(2);
+		}
+		boolean ok = new OverlaySync(threads, checkContent, dryRun, System.out)
+				.sync(new File(src), new File(dst));
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,300 @@
+package org.projectx.icetool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Downloaded packages, kept by content in BASE_DIR/store/<md5>.
+// The index (BASE_DIR/store/index) has one line per known file:
+//
+//   <md5> <size> <mtime> <last used> <path>
+//
+// A file whose size and mtime still match its line is trusted without
+// hashing it again. Files outside the store (i.e. market APKs) can be
+// indexed too, only files inside it count for the size cap, least
+// recently used first out. icetool reads and appends the same index,
+// the last line for a path wins.
+// The index is kept in memory (read again only when the script changed
+// the file) and written once per batch (save()). The packages of a
+// batch are pinned until it is over, eviction leaves them alone.
+public class PackageStore {
+	static final String STORE_DIR    = "store";
+	static final String INDEX_FILE   = "index";
+	static final long   MAX_SIZE     = 64L * 1024 * 1024;
+
+	// Several instances may share one index
+	private static final Object LOCK = new Object();
+
+	static class Entry {
+		String md5;
+		long   size;
+		long   mtime;     // Seconds, as stat -c %Y
+		long   lastUsed;  // Seconds
+		String path;
+	}
+
+	private final File dir;
+	private final File indexFile;
+	private long       maxSize;
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final HashSet<String>          dirty  = new HashSet<String>(); // Paths changed since save()
+	private final HashMap<String, Integer> pinned = new HashMap<String, Integer>(); // md5 -> batches
+	private long    loadedStamp = -1;   // Index file as we last read or wrote it
+	private boolean pruned      = false;
+
+	public PackageStore(File baseDir, long maxSize) {
+		this.dir       = new File(baseDir, STORE_DIR);
+		this.indexFile = new File(dir, INDEX_FILE);
+		this.maxSize   = maxSize;
+	}
+
+	/// Instances //////////////////////////////////////////
+	// One per BASE_DIR, so they all share the index in memory
+	private static final HashMap<String, PackageStore> STORES = new HashMap<String, PackageStore>();
+
+	public static PackageStore getInstance(File baseDir, long maxSize) {
+		synchronized (LOCK) {
+			PackageStore store = STORES.get(baseDir.getAbsolutePath());
+			if (store == null) {
+				store = new PackageStore(baseDir, maxSize);
+				STORES.put(baseDir.getAbsolutePath(), store);
+			}
+			store.maxSize = maxSize;
+			return store;
+		}
+	}
+	////////////////////////////////////////////////////////
+
+	public File fileFor(String md5) {
+		return new File(dir, md5.toLowerCase());
+	}
+
+	// The stored file with this content, null if not there (or damaged)
+	public File get(String md5) throws IOException {
+		synchronized (LOCK) {
+			return getLocked(md5);
+		}
+	}
+
+	private File getLocked(String md5) throws IOException {
+		File f = fileFor(md5);
+		if (!f.isFile()) {
+			forget(f);
+			return null;
+		}
+		if (!md5.equalsIgnoreCase(md5OfLocked(f))) {
+			f.delete();
+			forget(f);
+			return null;
+		}
+		return f;
+	}
+
+	// Moves src into the store (if not there already) and indexes it
+	public File put(File src, String md5) throws IOException {
+		synchronized (LOCK) {
+			return putLocked(src, md5);
+		}
+	}
+
+	private File putLocked(File src, String md5) throws IOException {
+		File f = fileFor(md5);
+		dir.mkdirs();
+		if (!src.getAbsolutePath().equals(f.getAbsolutePath())) {
+			f.delete();
+			if (!src.renameTo(f))
+				throw new IOException("Cannot move " + src + " to " + f);
+		}
+		load();
+		if (entries.remove(src.getAbsolutePath()) != null)
+			dirty.add(src.getAbsolutePath());
+		index(f, md5.toLowerCase());
+		evict(f);
+		return f;
+	}
+
+	// The packages of a batch stay in the store until unpin()
+	public void pin(Iterable<String> md5s) {
+		synchronized (LOCK) {
+			for (String md5 : md5s) {
+				Integer n = pinned.get(md5.toLowerCase());
+				pinned.put(md5.toLowerCase(), n == null ? 1 : n + 1);
+			}
+		}
+	}
+
+	public void unpin(Iterable<String> md5s) {
+		synchronized (LOCK) {
+			for (String md5 : md5s) {
+				Integer n = pinned.get(md5.toLowerCase());
+				if (n == null || n <= 1)
+					pinned.remove(md5.toLowerCase());
+				else
+					pinned.put(md5.toLowerCase(), n - 1);
+			}
+		}
+	}
+
+	// MD5 of any file, hashed only if the index doesn't know it as it is now
+	public String md5Of(File f) throws IOException {
+		synchronized (LOCK) {
+			return md5OfLocked(f);
+		}
+	}
+
+	private String md5OfLocked(File f) throws IOException {
+		load();
+		Entry e = entries.get(f.getAbsolutePath());
+		if (e != null && e.size == f.length() && e.mtime == f.lastModified() / 1000) {
+			e.lastUsed = now();
+			dirty.add(e.path);
+			return e.md5;
+		}
+		String md5 = DownloadEngine.md5Of(f);
+		index(f, md5);
+		return md5;
+	}
+
+	private void index(File f, String md5) {
+		Entry e = new Entry();
+		e.md5      = md5;
+		e.size     = f.length();
+		e.mtime    = f.lastModified() / 1000;
+		e.lastUsed = now();
+		e.path     = f.getAbsolutePath();
+		entries.remove(e.path);
+		entries.put(e.path, e);
+		dirty.add(e.path);
+	}
+
+	private void forget(File f) throws IOException {
+		load();
+		if (entries.remove(f.getAbsolutePath()) != null)
+			dirty.add(f.getAbsolutePath());
+	}
+
+	// Least recently used store files go until we're under maxSize.
+	// keep and the pinned ones count, but stay
+	private void evict(File keep) {
+		String storePath = dir.getAbsolutePath() + File.separator;
+		ArrayList<Entry> owned = new ArrayList<Entry>();
+		long total = 0;
+		for (Entry e : entries.values()) {
+			if (!e.path.startsWith(storePath) || e.path.equals(keep.getAbsolutePath()))
+				continue;
+			total += e.size;
+			if (!pinned.containsKey(e.md5))
+				owned.add(e);
+		}
+		total += keep.length();
+		Collections.sort(owned, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < owned.size() && total > maxSize; i++) {
+			Entry e = owned.get(i);
+			new File(e.path).delete();
+			entries.remove(e.path);
+			dirty.add(e.path);
+			total -= e.size;
+		}
+	}
+
+	/// Index file /////////////////////////////////////////
+	// Read again only if the file changed since (the script appended
+	// lines), what we changed and didn't save yet stays on top
+	private void load() throws IOException {
+		long stamp = stampOf(indexFile);
+		if (stamp == loadedStamp)
+			return;
+		LinkedHashMap<String, Entry> read = new LinkedHashMap<String, Entry>();
+		if (indexFile.isFile()) {
+			BufferedReader br = new BufferedReader(new FileReader(indexFile), 8192);
+			try {
+				String l;
+				while ((l = br.readLine()) != null) {
+					String[] t = l.split(" ", 5);
+					if (t.length < 5)
+						continue;
+					try {
+						Entry e = new Entry();
+						e.md5      = t[0];
+						e.size     = Long.parseLong(t[1]);
+						e.mtime    = Long.parseLong(t[2]);
+						e.lastUsed = Long.parseLong(t[3]);
+						e.path     = t[4];
+						read.remove(e.path);
+						read.put(e.path, e);
+					} catch (NumberFormatException ex) {
+						// Broken line, skip it
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+		for (String path : dirty) {
+			read.remove(path);
+			if (entries.containsKey(path))
+				read.put(path, entries.get(path));
+		}
+		// Lines of files gone meanwhile are dropped once, on the first read
+		if (!pruned) {
+			pruned = true;
+			for (Iterator<Entry> i = read.values().iterator(); i.hasNext(); ) {
+				Entry e = i.next();
+				if (!new File(e.path).isFile()) {
+					i.remove();
+					dirty.add(e.path);
+				}
+			}
+		}
+		entries     = read;
+		loadedStamp = stamp;
+	}
+
+	// Writes the index if anything changed, compacted to one line per
+	// path. Once per batch, not per lookup
+	public void save() throws IOException {
+		synchronized (LOCK) {
+			load();
+			if (dirty.isEmpty())
+				return;
+			dir.mkdirs();
+			File tmp = new File(indexFile.getPath() + ".tmp");
+			FileWriter w = new FileWriter(tmp);
+			try {
+				for (Entry e : entries.values())
+					w.write(e.md5 + " " + e.size + " " + e.mtime + " " + e.lastUsed + " " + e.path + "\n");
+			} finally {
+				w.close();
+			}
+			if (!tmp.renameTo(indexFile)) {
+				indexFile.delete();
+				tmp.renameTo(indexFile);
+			}
+			dirty.clear();
+			loadedStamp = stampOf(indexFile);
+		}
+	}
+
+	// Changes when the file is written or appended to
+	private static long stampOf(File f) {
+		return f.isFile() ? f.lastModified() * 31 + f.length() : 0;
+	}
+	////////////////////////////////////////////////////////
+
+	private static long now() {
+		return System.currentTimeMillis() / 1000;
+	}
+}
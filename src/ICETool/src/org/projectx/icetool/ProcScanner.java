@@ -0,0 +1,281 @@
+package org.projectx.icetool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Renices the processes listed in renice.txt ("<name> <priority>" lines).
+// /proc is read once into a name -> pids index, names match exactly
+// (the command line for app processes, the stat name for the rest), and
+// all the pids with the same priority go to a single renice call.
+// In watch mode /proc is rescanned every few seconds and processes that
+// (re)started since get their priority too; only the stat of known pids
+// is read again, to tell a reused pid (another start time) from the same
+// process.
+//
+// Runs as root from icetool (see Renice there):
+//   CLASSPATH=<ICETool.apk> app_process /system/bin org.projectx.icetool.ProcScanner \
+//       [-n] [-p <proc root>] [-w <seconds>] <renice.txt>
+//
+//   -n  only report what would be reniced
+//   -p  where procfs is (default /proc)
+//   -w  keep watching, rescanning every <seconds>
+public class ProcScanner {
+	static final String PROC_ROOT = "/proc";
+	static final String RENICE    = "renice";
+
+	private final File        procRoot;
+	private final boolean     dryRun;
+	private final PrintStream out;
+
+	// One process seen by scan(): a pid is the same process as long as
+	// its start time is
+	static class Proc {
+		final long   startTime;   // Field 22 of /proc/<pid>/stat
+		final String name;
+
+		Proc(long startTime, String name) {
+			this.startTime = startTime;
+			this.name      = name;
+		}
+	}
+
+	// pid -> process, kept between scans
+	private final HashMap<Integer, Proc> procs = new HashMap<Integer, Proc>();
+	// pids already given their priority
+	private final HashSet<Integer> applied = new HashSet<Integer>();
+
+	public ProcScanner(File procRoot, boolean dryRun, PrintStream out) {
+		this.procRoot = procRoot;
+		this.dryRun   = dryRun;
+		this.out      = out;
+	}
+
+	// name -> pids of the processes running now
+	public HashMap<String, ArrayList<Integer>> scan() {
+		HashMap<String, ArrayList<Integer>> index = new HashMap<String, ArrayList<Integer>>();
+		HashSet<Integer> alive = new HashSet<Integer>();
+		String[] entries = procRoot.list();
+		if (entries == null)
+			return index;
+		for (String e : entries) {
+			if (e.length() == 0 || e.charAt(0) < '0' || e.charAt(0) > '9')
+				continue;
+			Integer pid;
+			try {
+				pid = Integer.valueOf(e);
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			File   dir  = new File(procRoot, e);
+			String stat = read(new File(dir, "stat"));
+			long   startTime = startTimeOf(stat);
+			if (startTime < 0)
+				continue;   // Gone meanwhile
+			Proc proc = procs.get(pid);
+			if (proc == null || proc.startTime != startTime) {
+				// New, or the pid was reused by another process
+				String name = readName(dir, stat);
+				if (name == null)
+					continue;
+				proc = new Proc(startTime, name);
+				procs.put(pid, proc);
+				applied.remove(pid);
+			}
+			String name = proc.name;
+			alive.add(pid);
+			ArrayList<Integer> pids = index.get(name);
+			if (pids == null) {
+				pids = new ArrayList<Integer>();
+				index.put(name, pids);
+			}
+			pids.add(pid);
+		}
+		procs.keySet().retainAll(alive);
+		applied.retainAll(alive);
+		return index;
+	}
+
+	// Start time from a stat line, -1 if there is none. The name, in
+	// parentheses, may hold spaces: fields are counted after it
+	static long startTimeOf(String stat) {
+		if (stat == null)
+			return -1;
+		int close = stat.lastIndexOf(')');
+		if (close < 0)
+			return -1;
+		String[] f = stat.substring(close + 1).trim().split("\\s+");
+		// f[0] is field 3 (state)
+		try {
+			return f.length > 19 ? Long.parseLong(f[19]) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// argv[0] (app processes are named after their package there),
+	// or the name in stat for kernel threads and such
+	private static String readName(File dir, String stat) {
+		String cmdline = read(new File(dir, "cmdline"));
+		if (cmdline != null) {
+			int nul = cmdline.indexOf('\0');
+			String argv0 = (nul >= 0 ? cmdline.substring(0, nul) : cmdline).trim();
+			if (argv0.length() > 0)
+				return argv0;
+		}
+		int open = stat.indexOf('('), close = stat.lastIndexOf(')');
+		return open >= 0 && close > open ? stat.substring(open + 1, close) : null;
+	}
+
+	private static String read(File f) {
+		try {
+			FileInputStream in = new FileInputStream(f);
+			try {
+				byte[] buf = new byte[512];
+				int n = 0, r;
+				while (n < buf.length && (r = in.read(buf, n, buf.length - n)) > 0)
+					n += r;
+				return new String(buf, 0, n);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Priorities for the processes of the index not reniced yet.
+	// Returns how many names had no process (only reported if reportMisses)
+	public int apply(LinkedHashMap<String, Integer> wanted, HashMap<String, ArrayList<Integer>> index,
+			boolean reportMisses) {
+		LinkedHashMap<Integer, ArrayList<Integer>> byPrio = new LinkedHashMap<Integer, ArrayList<Integer>>();
+		int misses = 0;
+		for (Map.Entry<String, Integer> w : wanted.entrySet()) {
+			ArrayList<Integer> pids = index.get(w.getKey());
+			if (pids == null) {
+				misses++;
+				if (reportMisses)
+					out.println(w.getKey() + " not running");
+				continue;
+			}
+			ArrayList<Integer> fresh = new ArrayList<Integer>();
+			for (Integer pid : pids) {
+				if (!applied.contains(pid))
+					fresh.add(pid);
+			}
+			if (fresh.isEmpty())
+				continue;
+			ArrayList<Integer> group = byPrio.get(w.getValue());
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				byPrio.put(w.getValue(), group);
+			}
+			group.addAll(fresh);
+			out.println(w.getKey() + " (pid=" + join(fresh, ",") + ") " +
+					(dryRun ? "would be reniced" : "reniced") + " to " + w.getValue());
+		}
+		for (Map.Entry<Integer, ArrayList<Integer>> g : byPrio.entrySet()) {
+			if (dryRun || renice(g.getKey(), g.getValue()))
+				applied.addAll(g.getValue());
+		}
+		return misses;
+	}
+
+	// One renice per priority, toolbox takes several pids
+	private boolean renice(int prio, ArrayList<Integer> pids) {
+		String[] cmd = new String[pids.size() + 2];
+		cmd[0] = RENICE;
+		cmd[1] = String.valueOf(prio);
+		for (int i = 0; i < pids.size(); i++)
+			cmd[i + 2] = String.valueOf(pids.get(i));
+		try {
+			int code = Runtime.getRuntime().exec(cmd).waitFor();
+			if (code != 0)
+				out.println("  FAILED renice " + prio + " " + join(pids, " ") + " (exit " + code + ")");
+			return code == 0;
+		} catch (Exception e) {
+			out.println("  FAILED renice " + prio + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static String join(ArrayList<Integer> l, String sep) {
+		StringBuilder sb = new StringBuilder();
+		for (Integer i : l) {
+			if (sb.length() > 0)
+				sb.append(sep);
+			sb.append(i);
+		}
+		return sb.toString();
+	}
+
+	// "<name> <priority>" lines, # comments, later lines win
+	static LinkedHashMap<String, Integer> readConfig(File f) throws IOException {
+		LinkedHashMap<String, Integer> wanted = new LinkedHashMap<String, Integer>();
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			String l;
+			while ((l = br.readLine()) != null) {
+				l = l.trim();
+				if (l.length() == 0 || l.startsWith("#"))
+					continue;
+				String[] t = l.split("\\s+");
+				if (t.length < 2)
+					continue;
+				try {
+					wanted.put(t[0], Integer.valueOf(t[1].startsWith("+") ? t[1].substring(1) : t[1]));
+				} catch (NumberFormatException e) {
+					// Not a priority, skip it
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return wanted;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File    procRoot = new File(PROC_ROOT);
+		boolean dryRun   = false;
+		int     watch    = 0;
+		String  config   = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n"))
+				dryRun = true;
+			else if (args[i].equals("-p") && i + 1 < args.length)
+				procRoot = new File(args[++i]);
+			else if (args[i].equals("-w") && i + 1 < args.length)
+				watch = Math.max(1, Integer.parseInt(args[++i]));
+			else
+				config = args[i];
+		}
+		if (config == null || !new File(config).isFile()) {
+			System.err.println("Usage: ProcScanner [-n] [-p <proc root>] [-w <seconds>] <renice.txt>");
+			System.exit(2);
+		}
+		LinkedHashMap<String, Integer> wanted = readConfig(new File(config));
+		ProcScanner scanner = new ProcScanner(procRoot, dryRun, System.out);
+
+		long start = System.currentTimeMillis();
+		HashMap<String, ArrayList<Integer>> index = scanner.scan();
+		int misses = scanner.apply(wanted, index, true);
+		System.out.println("Renice: " + (wanted.size() - misses) + " matched, " + misses +
+				" not running, " + index.size() + " process names scanned in " +
+				(System.currentTimeMillis() - start) + " ms");
+		if (watch == 0)
+			return;
+		System.out.println("Watching every " + watch + " s");
+		while (true) {
+			Thread.sleep(watch * 1000L);
+			scanner.apply(wanted, scanner.scan(), false);
+		}
+	}
+}
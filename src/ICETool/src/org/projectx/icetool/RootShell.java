@@ -0,0 +1,121 @@
+package org.projectx.icetool;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// A long-lived shell (su by default) fed through its stdin.
+// Each command is followed by an echo of a unique sentinel carrying $?,
+// so we know where its output ends without closing the shell.
+// Commands must not read from the shell's own stdin.
+public class RootShell {
+	static final String CMD_SU       = "su";
+	static final String CMD_LOCAL_SH = "/bin/sh";   // Stand-in for host testing
+
+	private static int  sessionCount = 0;
+
+	private final String[]   shellCmd;
+	private final String     sessionId;
+	private int              seq     = 0;
+	private volatile Process process = null;
+	private DataOutputStream stdin   = null;
+	private InputStream      stdout  = null;
+
+	public RootShell(String... shellCmd) {
+		this.shellCmd = shellCmd;
+		synchronized (RootShell.class) {
+			sessionCount++;
+			this.sessionId = Integer.toHexString((int) System.nanoTime()) + sessionCount;
+		}
+	}
+
+	public static RootShell local() {
+		return new RootShell(CMD_LOCAL_SH);
+	}
+
+	public synchronized boolean isAlive() {
+		if (process == null)
+			return false;
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	private void start() throws IOException {
+		close();
+		ProcessBuilder pb = new ProcessBuilder(shellCmd);
+		pb.redirectErrorStream(true);
+		process = pb.start();
+		stdin   = new DataOutputStream(process.getOutputStream());
+		stdout  = process.getInputStream();
+	}
+
+	// Runs a command line and streams its output; returns its exit code.
+	// A dead shell is restarted before the command is sent, and a shell
+	// dying mid-command is dropped so the next call starts a new one.
+	public int run(String command, OutputStreamer.Listener listener) throws IOException {
+		return run(command, listener, null);
+	}
+
+	// Same, filling spawn time, first byte and byte count into stats
+	public synchronized int run(String command, OutputStreamer.Listener listener,
+			CommandStats stats) throws IOException {
+		String sentinel = "__ICETOOL_" + sessionId + "_" + (++seq) + "__:";
+		String line     = command + "\n" + "echo \"" + sentinel + "$?\"\n";
+
+		long t0 = System.nanoTime();
+		if (!isAlive())
+			start();
+		try {
+			stdin.writeBytes(line);
+			stdin.flush();
+		} catch (IOException e) {
+			// Died while idle, nothing was run yet
+			start();
+			stdin.writeBytes(line);
+			stdin.flush();
+		}
+		long sent = System.nanoTime();
+		if (stats != null)
+			stats.spawnMs = (sent - t0) / 1000000;
+
+		OutputStreamer streamer = new OutputStreamer(listener);
+		try {
+			return streamer.stream(stdout, sentinel);
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			if (stats != null) {
+				stats.bytes = streamer.getBytesRead();
+				if (streamer.getFirstByteAt() != 0)
+					stats.firstByteMs = (streamer.getFirstByteAt() - sent) / 1000000;
+			}
+		}
+	}
+
+	// Kills the shell (and whatever it runs) without waiting for run()
+	public void kill() {
+		Process p = process;
+		if (p != null)
+			p.destroy();
+	}
+
+	public synchronized void close() {
+		if (process == null)
+			return;
+		try {
+			stdin.writeBytes("exit\n");
+			stdin.flush();
+		} catch (IOException e) {
+			// Already gone
+		}
+		process.destroy();
+		process = null;
+		stdin   = null;
+		stdout  = null;
+	}
+}
@@ -1,67 +1,299 @@
 package org.projectx.icetool;
 
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import android.os.AsyncTask;
-import android.widget.TextView;
+import android.content.Context;
 
 
-public class ScriptExecuter extends AsyncTask<String, String, Integer> {
-	static final int    OUTPUT_BUFSIZE = 1;
+// Sends icetool commands to the CommandScheduler, their output and
+// progress go to the OutputJournal. ExecutionService is held from the
+// first download until the job is over.
+public class ScriptExecuter {
 	static final String CMD_ICETOOL="/system/bin/icetool";
-	static final String CMD_SU="su";
-	static final String CMD_C="-c";
-	private TextView    consoleView  = null;
-			
-    protected Integer doInBackground(String...cmds) {
-        int count = cmds.length;
-        for (int i = 0; i < count; i++) {
-            executeCommand(cmds[i]);
-        }
-        return Integer.valueOf(count);
-    }
-
-    protected void onProgressUpdate(String... inputChars) {
-    	if (consoleView == null)
-    		return;    	
-        for (String c : inputChars) {
-           consoleView.append(c);
-        }
-    }
-
-    protected void onPostExecute(Integer result) {
-    	if (consoleView == null)
-    		return;
-    	consoleView.append("== Finished, return value is " + result.toString() + " ==\n");
-    }	
-
-	private Integer executeCommand(String cmd) {
-		consoleView = ICETool.getInstance().getConsoleView();
-		Process   p = null;
-		int       rc = -1;
-		
-		if (consoleView == null)
-			return rc;
-		
+	static final String ARG_VERIFIED = "verified";
+	static final String ENV_APK = "ICETOOL_APK";
+	static final String ENV_EVENTS = EventWriter.ENV_EVENTS;
+	private final Context       context;
+	private final OutputJournal journal = OutputJournal.getInstance();
+
+	public ScriptExecuter(Context context) {
+		this.context = context.getApplicationContext();
+	}
+
+	public void execute(String...cmds) {
+		for (String cmd : cmds) {
+			CommandIndex.getInstance().used(cmd);
+			fetchThen(new String[] { cmd }, false);
+		}
+	}
+
+	// All the steps as one job (see CommandBatch)
+	public void executeBatch(String...steps) {
+		for (String step : steps)
+			CommandIndex.getInstance().used(step);
+		fetchThen(steps, true);
+	}
+
+	// whenOver: run once all the jobs are over, may be null
+	private void submitSteps(String[] steps, boolean batch, final Runnable whenOver) {
+		if (batch) {
+			submit(CommandBatch.toCommandLine(steps),
+					CommandBatch.resourcesOf(CommandScheduler.getInstance(), steps), steps, whenOver);
+		} else {
+			final AtomicInteger left = new AtomicInteger(steps.length);
+			Runnable lastOver = whenOver == null ? null : new Runnable() {
+				public void run() {
+					if (left.decrementAndGet() == 0)
+						whenOver.run();
+				}
+			};
+			for (String cmd : steps)
+				submit(cmd, CommandScheduler.getInstance().resourcesOf(cmd), null, lastOver);
+		}
+	}
+
+	/// Downloads //////////////////////////////////////////
+	// Files the steps need (CHECKSUMS lines) are fetched in parallel first,
+	// the steps are only queued once all of them are there and verified.
+	// They stay pinned in the store until the steps are over
+	private void fetchThen(String[] stepList, final boolean batch) {
+		final String[] steps = stepList.clone();
+		ICESetup setup    = ICEApplication.getInstance().getSetup();
+		String   baseUrl  = setup.getSetting("BASE_URL", null);
+		String   baseDir  = setup.getSetting("BASE_DIR", null);
+		final ArrayList<DownloadEngine.Download> downloads = new ArrayList<DownloadEngine.Download>();
+		final ArrayList<String> md5s = new ArrayList<String>();
+		final PackageStore store = baseDir != null ? packageStore(setup, baseDir) : null;
+		for (int i = 0; i < steps.length && baseUrl != null && baseDir != null; i++) {
+			String step = steps[i].trim();
+			String md5  = setup.getManifest().getDownloadChecksum(step);
+			if (md5 == null)
+				continue;
+			String name = step.substring(step.indexOf(' ') + 1);
+			downloads.add(new DownloadEngine.Download(baseUrl + "/" + name, name, md5,
+					store, new File(baseDir, name)));
+			md5s.add(md5);
+			steps[i] = step + " " + ARG_VERIFIED;
+		}
+		if (downloads.isEmpty()) {
+			submitSteps(steps, batch, null);
+			return;
+		}
+		store.pin(md5s);
+
+		int parallel = DownloadEngine.MAX_PARALLEL;
+		try {
+			parallel = Integer.parseInt(setup.getSetting("DOWNLOAD_PARALLEL", "" + parallel));
+		} catch (NumberFormatException e) {
+			// Keep the default
+		}
+		final AtomicInteger left = new AtomicInteger(downloads.size());
+		ExecutionService.hold(context);
+		DownloadEngine engine = DownloadEngine.getInstance(Math.max(1, parallel));
+		for (DownloadEngine.Download d : downloads) {
+			publishProgress("==== Downloading " + d.getName() + " ====\n");
+			engine.submit(d, new DownloadEngine.Listener() {
+				public void onProgress(DownloadEngine.Download d) {
+					if (d.getPercent() >= 0)
+						publishProgress("== " + d.getName() + ": " + d.getPercent() + "% (" +
+								d.getDone() / 1024 + " of " + d.getSize() / 1024 + " KB) ==\n");
+				}
+				public void onFinished(DownloadEngine.Download d) {
+					publishProgress(d.isOk() ? "== " + d.getName() + " verified ==\n" :
+							"== Download of " + d.getName() + " failed: " + d.getError() + " ==\n");
+					if (left.decrementAndGet() == 0) {
+						downloadsFinished(steps, batch, downloads, store, md5s);
+						ExecutionService.release();
+					}
+				}
+			});
+		}
+	}
+
+	private static PackageStore packageStore(ICESetup setup, String baseDir) {
+		long maxSize = PackageStore.MAX_SIZE;
+		try {
+			maxSize = Long.parseLong(setup.getSetting("STORE_MAX_MB", "")) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+			// Keep the default
+		}
+		return PackageStore.getInstance(new File(baseDir), maxSize);
+	}
+
+	private void downloadsFinished(String[] steps, boolean batch, ArrayList<DownloadEngine.Download> downloads,
+			final PackageStore store, final ArrayList<String> md5s) {
+		// The index once for the whole batch, before the script reads it
+		try {
+			store.save();
+		} catch (IOException e) {
+			publishProgress("== Cannot write the package index: " + e.getMessage() + " ==\n");
+		}
+		for (DownloadEngine.Download d : downloads) {
+			if (!d.isOk()) {
+				store.unpin(md5s);
+				publishProgress("== Not running " + (batch ? "batch" : steps[0]) + " ==\n");
+				return;
+			}
+		}
+		submitSteps(steps, batch, new Runnable() {
+			public void run() {
+				store.unpin(md5s);
+			}
+		});
+	}
+	////////////////////////////////////////////////////////
+
+	// batchSteps: the steps of a batch job, null for a single command
+	private void submit(String cmd, String[] resources, final String[] batchSteps, final Runnable whenOver) {
+		ExecutionService.hold(context);
+		CommandScheduler.Job job = CommandScheduler.getInstance().submit(cmd, resources,
+				new CommandScheduler.Work() {
+			public int execute(CommandScheduler.Job job) throws Exception {
+				return executeCommand(job, batchSteps);
+			}
+		}, new CommandScheduler.Listener() {
+			public void onStatusChanged(CommandScheduler.Job job, CommandScheduler.Status status) {
+				statusChanged(job, status);
+				if (whenOver != null && (status == CommandScheduler.Status.DONE ||
+						status == CommandScheduler.Status.FAILED || status == CommandScheduler.Status.CANCELLED))
+					whenOver.run();
+			}
+		});
+		int pos = job.getQueuePosition();
+		if (pos > 0)
+			publishProgress("==== Queued #" + job.getId() + " (" + pos + " ahead): " + cmd + " ====\n");
+	}
+
+	public static void cancelAll() {
+		CommandScheduler.getInstance().cancelAll();
+	}
+
+	private void publishProgress(String chunk) {
+		journal.append(chunk);
+	}
+
+	/// Progress ///////////////////////////////////////////
+	private void onEvent(CommandScheduler.Job job, EventParser.Event e) {
+		switch (e.getType()) {
+		case EventParser.Event.STEP:
+			setProgress("#" + job.getId() + ": " + e.getWhat(), -1);
+			break;
+		case EventParser.Event.PROGRESS:
+			// Without a name it is the progress of the current step
+			String label = e.getWhat().length() > 0 ?
+					"#" + job.getId() + ": " + e.getWhat() : journal.getProgressLabel();
+			if (label != null)
+				setProgress(label, e.getPercent());
+			break;
+		default:
+			break;
+		}
+	}
+
+	// label null clears it
+	private void setProgress(String label, int percent) {
+		journal.setProgress(label, percent);
+	}
+	////////////////////////////////////////////////////////
+
+	private void statusChanged(CommandScheduler.Job job, CommandScheduler.Status status) {
+		switch (status) {
+		case DONE:
+		case FAILED:
+			publishProgress("== Finished #" + job.getId() + ", return value is " + job.getExitCode() +
+					" (" + job.getRunMillis() + " ms) ==\n");
+			ExecutionService.release();
+			break;
+		case CANCELLED:
+			publishProgress("== Cancelled #" + job.getId() + ": " + job.getCommand() + " ==\n");
+			ExecutionService.release();
+			break;
+		default:
+			break;
+		}
+	}
+
+	// Copy-only steps whose files are already in place are not even sent
+	// to the shell
+	private String[] skipApplied(String[] steps) {
+		SetupManifest      manifest     = ICEApplication.getInstance().getSetup().getManifest();
+		TargetFingerprints fingerprints = TargetFingerprints.getInstance(context);
+		ArrayList<String>  todo         = new ArrayList<String>(steps.length);
+		for (String step : steps) {
+			if (manifest.isCopyOnly(step.trim()) && fingerprints.isApplied(manifest, step))
+				publishProgress("== Skipping " + step + ": already applied ==\n");
+			else
+				todo.add(step);
+		}
+		return todo.toArray(new String[todo.size()]);
+	}
+
+	private int executeCommand(CommandScheduler.Job job, String[] batchSteps) throws Exception {
+		if (job.isCancelled())
+			return -1;
+		String[] steps = skipApplied(batchSteps != null ? batchSteps : new String[] { job.getCommand() });
+		if (steps.length == 0)
+			return 0;
+		String command = batchSteps != null ? CommandBatch.toCommandLine(steps) : job.getCommand();
+
+		long         start = System.nanoTime();
+		CommandStats stats = new CommandStats(job.getId(), job.getCommand());
+		stats.queueMs = job.getQueueWaitMillis();
+
+		final RootShell shell = ShellPool.getInstance().acquire();
+		// Cancelling a running command kills its shell, the pool starts another
+		job.setCancelHook(new Runnable() {
+			public void run() {
+				shell.kill();
+			}
+		});
 		try {
-			publishProgress("==== Starting execution: " + cmd + " ====\n");			
-			p = Runtime.getRuntime().exec(CMD_SU);
-		    DataOutputStream os=new DataOutputStream(p.getOutputStream());
-		    os.writeBytes(CMD_ICETOOL + " " + cmd + "\n" + "; exit\n"); 
-		    os.flush();
-			// We avoid BufferedReader, as we want single characters
-			// such those on wget command
-			InputStreamReader r = new InputStreamReader(p.getInputStream());
-			char[] b = new char[OUTPUT_BUFSIZE];
-			while (r.read(b,0,OUTPUT_BUFSIZE) != -1) {
-				//b[OUTPUT_BUFSIZE] = '\0';
-				publishProgress(new String(b));
+			// Cancelled while checking the steps or waiting for a shell:
+			// there was no hook yet to stop it
+			if (job.isCancelled()) {
+				stats.status = "CANCELLED";
+				return -1;
 			}
-			//rc = p.exitValue();			
-		} catch (Exception e) {			
-			publishProgress(e.toString() + "\n");
+			publishProgress("==== Starting execution #" + job.getId() + ": " + job.getCommand() + " ====\n");
+			// Output is read in chunks and coalesced, partial lines
+			// (such those on wget command) are still flushed promptly
+			// The script can use our own code (i.e. TarGzInstaller) through app_process
+			// Its events (see EventParser) drive the progress bar instead
+			final CommandScheduler.Job current = job;
+			final EventParser parser = new EventParser(new EventParser.Listener() {
+				public void onText(String text) {
+					publishProgress(text);
+				}
+				public void onEvent(EventParser.Event e) {
+					ScriptExecuter.this.onEvent(current, e);
+				}
+			});
+			String apk = context.getPackageCodePath();
+			setProgress("#" + job.getId() + ": " + job.getCommand(), -1);
+			stats.exitCode = shell.run(ENV_APK + "=" + apk + " " + ENV_EVENTS + "=1 " +
+					CMD_ICETOOL + " " + command,
+					new OutputStreamer.Listener() {
+				public void onOutput(String chunk) {
+					parser.feed(chunk);
+				}
+			}, stats);
+			parser.finish();
+			stats.status = stats.exitCode == 0 ? "DONE" : "FAILED";
+			return stats.exitCode;
+		} catch (Exception e) {
+			stats.status = job.isCancelled() ? "CANCELLED" : "ERROR";
+			if (!job.isCancelled())
+				publishProgress(e.toString() + "\n");
+			throw e;
+		} finally {
+			job.setCancelHook(null);
+			setProgress(null, -1);
+			ShellPool.getInstance().release(shell);
+			stats.wallMs = (System.nanoTime() - start) / 1000000;
+			CommandStats.record(stats);
 		}
-		return 0;	// rc
-	}    
+	}
 }
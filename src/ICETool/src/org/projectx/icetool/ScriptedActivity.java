@@ -1,13 +1,19 @@
 package org.projectx.icetool;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 import android.app.ListActivity;
+import android.content.Context;
 import org.projectx.icetool.R;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.view.KeyEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
@@ -18,11 +24,15 @@ public abstract class ScriptedActivity extends ListActivity {
 	// These members must be set on children onCreate() methods
 	String[]       actions = null;
 	String[]       descriptions = null;
-	TextView       consoleView = null;
+	String         category = null;      // If listed by initList()
 	
 	// Execution environment
 	ScriptExecuter sce = null;
 
+	// Actions whose files are already in place (see TargetFingerprints)
+	boolean[]      active = null;
+	static final String STR_ACTIVE = " (active)";
+
 	public ScriptedActivity() {
 		super();
 	}
@@ -33,30 +43,48 @@ public abstract class ScriptedActivity extends ListActivity {
 		return true;
 	}
 	
+	// The manifest's own arrays, built once per category and shared,
+	// unless the category has commands whose options ChoiceCatalog knows
 	public void initList(String category) {
-		String categoryCommands[] = ICETool.getInstance().getSetup().getCategoryCommands(category);
-		ArrayList<String> allActions      = new ArrayList<String>(10);
-		ArrayList<String> allDescriptions = new ArrayList<String>(10);		
-		for (String c : categoryCommands) {
-			for (String s : ICETool.getInstance().getSetup().getCommandOptions(c)) {
-				allActions.add(s);				
-			}
-			for (String s : ICETool.getInstance().getSetup().getCommandDescriptions(c)) {
-				allDescriptions.add(s);				
-			}			
+		SetupManifest manifest = ICEApplication.getInstance().getSetup().getManifest();
+		String[][]    choices  = ChoiceCatalog.getInstance().getCategoryChoices(manifest, category);
+		this.category     = category;
+		this.actions      = choices[0];
+		this.descriptions = choices[1];
+	}
+
+	// Directories behind the choices changed, list them again
+	private final ChoiceCatalog.Listener choicesListener = new ChoiceCatalog.Listener() {
+		public void onChoicesChanged(String command) {
+			runOnUiThread(new Runnable() {
+				public void run() {
+					relist();
+				}
+			});
 		}
-		this.actions      = allActions.toArray(new String[allActions.size()]);			
-		this.descriptions = allDescriptions.toArray(new String[allDescriptions.size()]);						
+	};
+
+	// True if the list changed (its active ones are being marked then)
+	private boolean relist() {
+		String[] old = actions;
+		initList(category);
+		if (Arrays.equals(old, actions))
+			return false;
+		active = new boolean[actions.length];
+		setListAdapter(new ArrayAdapter<String>(this, R.layout.list_item, descriptions));
+		new ActiveMarker(actions, descriptions).execute();
+		return true;
 	}
 	
 	public void onCreate(Bundle savedInstanceState) {
+		long t = StartupTrace.begin();
 		super.onCreate(savedInstanceState);
 	
 		setListAdapter(new ArrayAdapter<String>(this, R.layout.list_item, descriptions));
+		active = new boolean[actions.length];
 		//this.setContentView(R.layout.img_item);
 		
 		ListView lv = getListView();		
-		lv.setTextFilterEnabled(true);
 	
 		lv.setOnItemClickListener(new OnItemClickListener() {
 			public void onItemClick(AdapterView<?> parent, View view,
@@ -72,7 +100,7 @@ public abstract class ScriptedActivity extends ListActivity {
 				
 				// Special activity
 				if (isSpecialActivity(action)) {
-				  runSpecialActivity(action);
+				  runSpecialActivity(ScriptedActivity.this, action);
 				  return;
 				}
 				
@@ -80,27 +108,172 @@ public abstract class ScriptedActivity extends ListActivity {
 				Toast.makeText(getApplicationContext(), ((TextView) view).getText(),
 						Toast.LENGTH_SHORT).show();				
 				try {
-					sce = new ScriptExecuter();
+					sce = new ScriptExecuter(ScriptedActivity.this);
 					sce.execute(action);
 				} catch (Exception e) {
-					ICETool.getInstance().getConsoleView().append(e.getStackTrace().toString() + "\n");
+					ICEApplication.getInstance().getConsole().append(e.toString() + "\n");
 				}								
 			}
+		});
 
-			// Dirty hack
-			private void runSpecialActivity(String action) {
-				if (action.equals("clearconsole")) {
-					ICETool.getInstance().getConsoleView().setText("");
-				}				
-			}
-
-			private boolean isSpecialActivity(String action) {
-				if (action.equals("clearconsole")) {
-					return true;
-				}
-				return false;
+		// Long press queues the action in the batch instead of running it
+		lv.setOnItemLongClickListener(new OnItemLongClickListener() {
+			public boolean onItemLongClick(AdapterView<?> parent, View view,
+					int position, long id) {
+				String action = actions[position];
+				if (isSpecialActivity(action))
+					return false;
+				int n = CommandBatch.add(action);
+				Toast.makeText(getApplicationContext(), "Added to batch (" + n + " steps): " +
+						((TextView) view).getText(), Toast.LENGTH_SHORT).show();
+				return true;
 			}
 		});
+		StartupTrace.end(getClass().getSimpleName() + ".onCreate", t);
+	}
+
+	protected void onResume() {
+		super.onResume();
+		StartupTrace.markOnce("first list shown");
+		boolean relisted = false;
+		if (category != null) {
+			ChoiceCatalog.getInstance().addListener(choicesListener);
+			relisted = relist();
+		}
+		// Something may have been applied meanwhile
+		if (!relisted)
+			new ActiveMarker(actions, descriptions).execute();
+	}
+
+	// Typing on a list searches all the tabs (see CommandIndex), not
+	// only this list
+	public boolean onSearchRequested() {
+		ICETool.getInstance().openPalette("");
+		return true;
+	}
+
+	public boolean onKeyDown(int keyCode, KeyEvent event) {
+		int c = event.getUnicodeChar();
+		if (event.getRepeatCount() == 0 && c > 0 && Character.isLetterOrDigit(c)) {
+			ICETool.getInstance().openPalette(String.valueOf((char) c));
+			return true;
+		}
+		return super.onKeyDown(keyCode, event);
+	}
+
+	protected void onPause() {
+		ChoiceCatalog.getInstance().removeListener(choicesListener);
+		super.onPause();
+	}
+
+	// Works on the list as it was when started, the UI thread may relist
+	// meanwhile: the result is dropped then
+	private class ActiveMarker extends AsyncTask<Void, Void, boolean[]> {
+		private final String[]           actions;
+		private final String[]           descriptions;
+		private final SetupManifest      manifest;
+		private final TargetFingerprints fingerprints;
+
+		ActiveMarker(String[] actions, String[] descriptions) {
+			this.actions      = actions;
+			this.descriptions = descriptions;
+			this.manifest     = ICEApplication.getInstance().getSetup().getManifest();
+			this.fingerprints = TargetFingerprints.getInstance(ScriptedActivity.this);
+		}
+
+		protected boolean[] doInBackground(Void... params) {
+			boolean[] now = new boolean[actions.length];
+			for (int i = 0; i < actions.length; i++)
+				now[i] = fingerprints.isApplied(manifest, actions[i]);
+			return now;
+		}
+
+		protected void onPostExecute(boolean[] now) {
+			if (actions != ScriptedActivity.this.actions || Arrays.equals(now, active))
+				return;
+			active = now;
+			String[] labels = new String[descriptions.length];
+			for (int i = 0; i < labels.length; i++)
+				labels[i] = i < now.length && now[i] ? descriptions[i] + STR_ACTIVE : descriptions[i];
+			setListAdapter(new ArrayAdapter<String>(ScriptedActivity.this, R.layout.list_item, labels));
+		}
+	}
+
+	// Dirty hack. Also run from the command palette
+	static void runSpecialActivity(Context context, String action) {
+		if (action.equals("clearconsole")) {
+			ICEApplication.getInstance().getConsole().clear();
+		} else if (action.equals("cancelcommands")) {
+			ScriptExecuter.cancelAll();
+		} else if (action.equals("showstats")) {
+			showStats();
+		} else if (action.equals("showtrace")) {
+			showTrace();
+		} else if (action.equals("consolelogon")) {
+			startConsoleLog();
+		} else if (action.equals("consolelogoff")) {
+			ICEApplication.getInstance().getConsole().stopLog();
+		} else if (action.equals("runbatch")) {
+			runBatch(context);
+		} else if (action.equals("clearbatch")) {
+			CommandBatch.clear();
+			ICEApplication.getInstance().getConsole().append("== Batch cleared ==\n");
+		}
+	}
+
+	static boolean isSpecialActivity(String action) {
+		if (action.equals("clearconsole") || action.equals("cancelcommands") ||
+				action.equals("showstats") || action.equals("showtrace") ||
+				action.equals("consolelogon") || action.equals("consolelogoff") ||
+				action.equals("runbatch") || action.equals("clearbatch")) {
+			return true;
+		}
+		return false;
+	}
+
+	static void runBatch(Context context) {
+		String[] steps = CommandBatch.take();
+		if (steps.length == 0) {
+			Toast.makeText(context.getApplicationContext(), "Batch is empty, long press options to add them",
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		new ScriptExecuter(context).executeBatch(steps);
+	}
+
+	// Per command timings on the console, full history dumped to the sdcard
+	static void showStats() {
+		ConsoleBuffer console = ICEApplication.getInstance().getConsole();
+		console.append("==== Command stats ====\n" + CommandStats.summary());
+		try {
+			CommandStats.dump(new File(CommandStats.DUMP_FILE));
+			console.append("== Saved to " + CommandStats.DUMP_FILE + " ==\n");
+		} catch (IOException e) {
+			console.append(e.toString() + "\n");
+		}
+	}
+
+	// How long startup took, saved as a trace to the sdcard
+	static void showTrace() {
+		ConsoleBuffer console = ICEApplication.getInstance().getConsole();
+		console.append("==== Startup trace ====\n" + StartupTrace.summary());
+		try {
+			StartupTrace.dump(new File(StartupTrace.DUMP_FILE));
+			console.append("== Saved to " + StartupTrace.DUMP_FILE + " ==\n");
+		} catch (IOException e) {
+			console.append(e.toString() + "\n");
+		}
+	}
+
+	// Everything shown from now on also goes to a file on the sdcard
+	static void startConsoleLog() {
+		ConsoleBuffer console = ICEApplication.getInstance().getConsole();
+		try {
+			console.startLog(new File(ConsoleBuffer.LOG_FILE));
+			console.append("== Logging console to " + ConsoleBuffer.LOG_FILE + " ==\n");
+		} catch (IOException e) {
+			console.append(e.toString() + "\n");
+		}
 	}
 
 }
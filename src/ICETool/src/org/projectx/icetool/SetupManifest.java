@@ -0,0 +1,213 @@
+package org.projectx.icetool;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Parsed output of "icetool setup" (see ManifestParser).
+// Immutable and index based: commands and categories are interned ids,
+// per command options, actions and descriptions live at the same index.
+public class SetupManifest {
+	public static final SetupManifest EMPTY = new ManifestParser(false).finish();
+
+	private final String   version;
+	private final long     checksum;
+	private final String   rawData;
+
+	private final String[]   commands;
+	private final String[][] options;       // As listed, null if no OPTIONS line
+	private final String[][] actions;       // "<command> <option>", what gets executed
+	private final String[][] descriptions;  // null if no DESCRIPTIONS line
+	private final String[][] resources;     // null if no RESOURCES line
+	private final String[]   categories;
+	private final int[][]    categoryCommands; // null if no CATEGORY_COMMANDS line
+	private final int        supportedCount;   // commands[0..supportedCount) came from COMMANDS
+	private final HashMap<String, String> settings;
+	private final HashMap<String, String> checksums; // "<command> <file>" -> md5
+	private final HashMap<String, String[]> targets; // action -> "<src>=<dst>"...
+
+	// In the TARGETS of an action that does more than copying them
+	static final String TARGET_RUNS = "!";
+
+	private final HashMap<String, Integer> commandIndex;
+	private final HashMap<String, Integer> categoryIndex;
+
+	// Actions / descriptions of all the commands of a category, built
+	// the first time the category is listed
+	private final String[][] categoryActions;
+	private final String[][] categoryDescriptions;
+
+	SetupManifest(String version, long checksum, String rawData,
+			String[] commands, int supportedCount, String[][] options, String[][] actions,
+			String[][] descriptions, String[][] resources, String[] categories, int[][] categoryCommands,
+			HashMap<String, String> settings, HashMap<String, String> checksums,
+			HashMap<String, String[]> targets) {
+		this.version          = version;
+		this.checksum         = checksum;
+		this.rawData          = rawData;
+		this.commands         = commands;
+		this.supportedCount   = supportedCount;
+		this.options          = options;
+		this.actions          = actions;
+		this.descriptions     = descriptions;
+		this.resources        = resources;
+		this.categories       = categories;
+		this.categoryCommands = categoryCommands;
+		this.settings         = settings;
+		this.checksums        = checksums;
+		this.targets          = targets;
+		this.commandIndex     = index(commands);
+		this.categoryIndex    = index(categories);
+		this.categoryActions      = new String[categories.length][];
+		this.categoryDescriptions = new String[categories.length][];
+	}
+
+	private static HashMap<String, Integer> index(String[] ids) {
+		HashMap<String, Integer> map = new HashMap<String, Integer>(ids.length * 2);
+		for (int i = 0; i < ids.length; i++)
+			map.put(ids[i], Integer.valueOf(i));
+		return map;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+	// CRC32 of the manifest lines, cheap change detection
+	public long getChecksum() {
+		return checksum;
+	}
+	// Manifest lines, only if the parser was asked to keep them
+	public String getRawData() {
+		return rawData;
+	}
+
+	public String getSetting(String name, String def) {
+		String v = settings.get(name);
+		return v == null ? def : v;
+	}
+	// MD5 of the file an action downloads ("extrapkg htcime.tgz"), null if none
+	public String getDownloadChecksum(String action) {
+		return checksums.get(action);
+	}
+
+	// "<src>=<dst>" files the action copies, null if none. May hold
+	// TARGET_RUNS too
+	public String[] getTargets(String action) {
+		return targets.get(action);
+	}
+
+	// The action only copies its targets: once they are in place it can be
+	// skipped. Without it (UV runs the voltages script) it is still run
+	public boolean isCopyOnly(String action) {
+		String[] t = targets.get(action);
+		return t != null && !Arrays.asList(t).contains(TARGET_RUNS);
+	}
+
+	/// Index based access /////////////////////////////////
+	public int getCommandCount() {
+		return commands.length;
+	}
+	public String getCommand(int cmd) {
+		return commands[cmd];
+	}
+	public boolean isSupported(int cmd) {
+		return cmd < supportedCount;
+	}
+	public int indexOfCommand(String cmd) {
+		Integer i = commandIndex.get(cmd);
+		return i == null ? -1 : i.intValue();
+	}
+	public String[] getOptions(int cmd) {
+		return options[cmd];
+	}
+	public String[] getActions(int cmd) {
+		return actions[cmd];
+	}
+	public String[] getDescriptions(int cmd) {
+		return descriptions[cmd];
+	}
+	public String[] getResources(int cmd) {
+		return resources[cmd];
+	}
+	public int getCategoryCount() {
+		return categories.length;
+	}
+	public String getCategory(int cat) {
+		return categories[cat];
+	}
+	public int indexOfCategory(String cat) {
+		Integer i = categoryIndex.get(cat);
+		return i == null ? -1 : i.intValue();
+	}
+	public int[] getCategoryCommandIndexes(int cat) {
+		return categoryCommands[cat];
+	}
+	// Shared arrays, not to be modified. Empty if the category has no commands
+	public String[] getCategoryActions(int cat) {
+		flatten(cat);
+		return categoryActions[cat];
+	}
+	// Same size as getCategoryActions(), the action itself if undescribed
+	public String[] getCategoryDescriptions(int cat) {
+		flatten(cat);
+		return categoryDescriptions[cat];
+	}
+
+	private synchronized void flatten(int cat) {
+		if (categoryActions[cat] != null)
+			return;
+		int[] cmds = categoryCommands[cat] == null ? new int[0] : categoryCommands[cat];
+		int n = 0;
+		for (int c : cmds)
+			n += actions[c] == null ? 0 : actions[c].length;
+		String[] a = new String[n], d = new String[n];
+		int i = 0;
+		for (int c : cmds) {
+			for (int j = 0; actions[c] != null && j < actions[c].length; j++, i++) {
+				a[i] = actions[c][j];
+				d[i] = descriptions[c] != null && j < descriptions[c].length ? descriptions[c][j] : a[i];
+			}
+		}
+		categoryDescriptions[cat] = d;
+		categoryActions[cat]      = a;
+	}
+
+	/// Name based access (as ICESetup always offered) /////
+	public boolean hasCategory(String cat) {
+		int i = indexOfCategory(cat);
+		return i >= 0 && categoryCommands[i] != null;
+	}
+	public String[] getCategoryCommands(String cat) {
+		int i = indexOfCategory(cat);
+		if (i < 0 || categoryCommands[i] == null)
+			return null;
+		int[]    idx  = categoryCommands[i];
+		String[] cmds = new String[idx.length];
+		for (int j = 0; j < idx.length; j++)
+			cmds[j] = commands[idx[j]];
+		return cmds;
+	}
+	public String[] getCategoryActions(String cat) {
+		int i = indexOfCategory(cat);
+		return i < 0 ? new String[0] : getCategoryActions(i);
+	}
+	public String[] getCategoryDescriptions(String cat) {
+		int i = indexOfCategory(cat);
+		return i < 0 ? new String[0] : getCategoryDescriptions(i);
+	}
+	public boolean hasCommand(String cmd) {
+		int i = indexOfCommand(cmd);
+		return i >= 0 && actions[i] != null;
+	}
+	public String[] getCommandOptions(String cmd) {
+		int i = indexOfCommand(cmd);
+		return i < 0 ? null : actions[i];
+	}
+	public String[] getCommandDescriptions(String cmd) {
+		int i = indexOfCommand(cmd);
+		return i < 0 ? null : descriptions[i];
+	}
+	public String[] getCommandResources(String cmd) {
+		int i = indexOfCommand(cmd);
+		return i < 0 ? null : resources[i];
+	}
+}
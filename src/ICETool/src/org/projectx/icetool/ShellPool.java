@@ -0,0 +1,69 @@
+package org.projectx.icetool;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+// Shared root shell sessions, so ICESetup and ScriptExecuter stop
+// spawning a new su (plus sh) for every single action
+public class ShellPool {
+	static final int MAX_SESSIONS = 2;
+
+	private final String[]              shellCmd;
+	private final int                   maxSessions;
+	private final LinkedList<RootShell> idle    = new LinkedList<RootShell>();
+	private int                         created = 0;
+
+	public ShellPool(int maxSessions, String... shellCmd) {
+		this.maxSessions = maxSessions;
+		this.shellCmd    = shellCmd;
+	}
+
+	/// Singleton //////////////////////////////////////////
+	private static ShellPool INSTANCE = null;
+
+	public synchronized static ShellPool getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new ShellPool(MAX_SESSIONS, RootShell.CMD_SU);
+		}
+		return INSTANCE;
+	}
+	// i.e. new ShellPool(1, RootShell.CMD_LOCAL_SH) off-device
+	public synchronized static void setInstance(ShellPool pool) {
+		if (INSTANCE != null)
+			INSTANCE.close();
+		INSTANCE = pool;
+	}
+	////////////////////////////////////////////////////////
+
+	public synchronized RootShell acquire() throws InterruptedException {
+		while (idle.isEmpty() && created >= maxSessions)
+			wait();
+		if (!idle.isEmpty())
+			return idle.removeFirst();
+		created++;
+		return new RootShell(shellCmd);
+	}
+
+	public synchronized void release(RootShell shell) {
+		// Most recently used first, it is the one most likely warm
+		idle.addFirst(shell);
+		notify();
+	}
+
+	public int run(String command, OutputStreamer.Listener listener)
+			throws IOException, InterruptedException {
+		RootShell shell = acquire();
+		try {
+			return shell.run(command, listener);
+		} finally {
+			release(shell);
+		}
+	}
+
+	public synchronized void close() {
+		for (RootShell s : idle)
+			s.close();
+		created -= idle.size();
+		idle.clear();
+	}
+}
@@ -0,0 +1,111 @@
+package org.projectx.icetool;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+// Timings of the startup phases (application, ICETool.onCreate, the
+// first list shown...), from the first use of this class, which is
+// ICEApplication.onCreate. Shown by the "showtrace" action and saved
+// in the Chrome trace format (chrome://tracing, Perfetto).
+public class StartupTrace {
+	static final String DUMP_FILE  = "/sdcard/blackice/icetool-startup.json";
+	static final int    MAX_EVENTS = 200;
+
+	static class Event {
+		final String name;
+		final String thread;
+		final long   startUs;      // From the origin
+		final long   durUs;        // -1 for a mark
+
+		Event(String name, long startUs, long durUs) {
+			this.name    = name;
+			this.thread  = Thread.currentThread().getName();
+			this.startUs = startUs;
+			this.durUs   = durUs;
+		}
+	}
+
+	private static final long             origin = System.nanoTime();
+	private static final ArrayList<Event> events = new ArrayList<Event>();
+
+	// Start of a phase, to be given to end()
+	public static long begin() {
+		return System.nanoTime();
+	}
+
+	public static void end(String name, long begin) {
+		add(new Event(name, (begin - origin) / 1000, (System.nanoTime() - begin) / 1000));
+	}
+
+	// Something happened now, i.e. the first list is there to be touched
+	public static void mark(String name) {
+		add(new Event(name, (System.nanoTime() - origin) / 1000, -1));
+	}
+
+	// Only the first time, from then on it isn't startup anymore
+	private static final ArrayList<String> marked = new ArrayList<String>();
+
+	public static void markOnce(String name) {
+		synchronized (marked) {
+			if (marked.contains(name))
+				return;
+			marked.add(name);
+		}
+		mark(name);
+	}
+
+	private static void add(Event e) {
+		synchronized (events) {
+			if (events.size() < MAX_EVENTS)
+				events.add(e);
+		}
+	}
+
+	private static ArrayList<Event> getEvents() {
+		synchronized (events) {
+			return new ArrayList<Event>(events);
+		}
+	}
+
+	// One line per phase: start and duration in ms
+	public static String summary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-28s %8s %8s\n", "phase", "at ms", "took ms"));
+		for (Event e : getEvents()) {
+			sb.append(String.format("%-28s %8.1f %8s\n", e.name, e.startUs / 1000.0,
+					e.durUs < 0 ? "-" : String.format("%.1f", e.durUs / 1000.0)));
+		}
+		return sb.toString();
+	}
+
+	public static String dump() {
+		StringBuilder sb = new StringBuilder("{\"traceEvents\":[\n");
+		ArrayList<Event> all = getEvents();
+		for (int i = 0; i < all.size(); i++) {
+			Event e = all.get(i);
+			sb.append("{\"name\":\"").append(quote(e.name))
+			  .append("\",\"ph\":\"").append(e.durUs < 0 ? "i\",\"s\":\"g" : "X")
+			  .append("\",\"ts\":").append(e.startUs);
+			if (e.durUs >= 0)
+				sb.append(",\"dur\":").append(e.durUs);
+			sb.append(",\"pid\":1,\"tid\":\"").append(quote(e.thread)).append("\"}")
+			  .append(i + 1 < all.size() ? ",\n" : "\n");
+		}
+		return sb.append("]}\n").toString();
+	}
+
+	public static void dump(File file) throws IOException {
+		FileWriter w = new FileWriter(file);
+		try {
+			w.write(dump());
+		} finally {
+			w.close();
+		}
+	}
+
+	private static String quote(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -4,7 +4,7 @@ import android.os.Bundle;
 
 public class SysActivity extends ScriptedActivity {
 	public boolean onItemSelected(String itemAction, String itemDescription) {
-		ICETool.getInstance().getTabHost().setCurrentTab(ICETool.TAB_CONSOLE);
+		ICETool.getInstance().showConsole();
 		return true;
 	}
 	
@@ -0,0 +1,383 @@
+package org.projectx.icetool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+// Installs a .tgz in a single pass: entries are extracted, given their
+// mode and reported while the MD5 of the compressed file is computed.
+// Files are written as <name>.icetmp and only renamed into place once
+// the whole archive was read and its MD5 matched. Directories have to
+// exist while reading: the ones created are removed again if the
+// package turns out bad, so it leaves nothing behind. Directory modes
+// are applied on commit.
+//
+// Runs as root from icetool (see Untgz there):
+//   CLASSPATH=<ICETool.apk> app_process /system/bin org.projectx.icetool.TarGzInstaller \
+//       [-n] [-C <root>] [-m <md5>] [-f <file mode>] <archive>
+//
+//   -n  only list the entries (still checks the MD5)
+//   -C  directory to extract into (default /)
+//   -m  expected MD5 of the archive
+//   -f  mode for every regular file (octal) instead of the one in the archive
+public class TarGzInstaller {
+	static final int    BLOCK       = 512;
+	static final int    BUFFER_SIZE = 16384;
+	static final String TMP_SUFFIX  = ".icetmp";
+
+	private final File        root;
+	private final String      md5;
+	private final int         fileMode;   // -1 = as archived
+	private final boolean     dryRun;
+	private final PrintStream out;
+	private final EventWriter events;
+
+	private final byte[]            header  = new byte[BLOCK];
+	private final byte[]            buf     = new byte[BUFFER_SIZE];
+	private final ArrayList<File[]> pending = new ArrayList<File[]>(); // { tmp, final }
+	private final ArrayList<String> links   = new ArrayList<String>(); // { target, path } pairs
+	private final ArrayList<File>   created = new ArrayList<File>();   // Directories we made, parents first
+	private final ArrayList<Object[]> dirModes = new ArrayList<Object[]>(); // { dir, mode }
+	private int  entries = 0;
+	private long bytes   = 0;
+
+	// For progress, how far we are in the archive
+	private FileInputStream source      = null;
+	private long            archiveSize = 0;
+	private String          archiveName = "";
+
+	public TarGzInstaller(File root, String md5, int fileMode, boolean dryRun, PrintStream out) {
+		this.root     = root;
+		this.md5      = md5 == null ? null : md5.toLowerCase();
+		this.fileMode = fileMode;
+		this.dryRun   = dryRun;
+		this.out      = out;
+		this.events   = new EventWriter(out);
+	}
+
+	// Returns the number of entries, throws if anything went wrong
+	// (in which case nothing was installed)
+	public int install(File archive) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		source      = new FileInputStream(archive);
+		archiveSize = archive.length();
+		archiveName = archive.getName();
+		events.step("install " + archiveName);
+		DigestInputStream raw = new DigestInputStream(
+				new BufferedInputStream(source, BUFFER_SIZE), digest);
+		try {
+			InputStream in = new GZIPInputStream(raw, BUFFER_SIZE);
+			readEntries(in);
+			// Whatever is left (gzip trailer, padding) still counts for the MD5
+			while (raw.read(buf) != -1)
+				;
+			String got = DownloadEngine.hex(digest.digest());
+			if (md5 != null && !md5.equals(got))
+				throw new IOException("MD5 mismatch for " + archive + " (" + got + " != " + md5 + ")");
+			commit();
+		} catch (IOException e) {
+			rollback();
+			events.end(1, "install " + archiveName);
+			throw e;
+		} finally {
+			raw.close();
+		}
+		events.end(0, "install " + archiveName);
+		out.println((dryRun ? "Listed " : "Installed ") + entries + " entries, " + bytes + " bytes");
+		return entries;
+	}
+
+	private void readEntries(InputStream in) throws IOException {
+		String longName = null;
+		while (true) {
+			if (!readFully(in, header, BLOCK))
+				return;
+			if (isZero(header))
+				return;   // End of archive
+			events.bytes(source.getChannel().position(), archiveSize, archiveName);
+			String name  = longName != null ? longName : entryName();
+			longName     = null;
+			int    mode  = (int) octal(100, 8);
+			long   size  = octal(124, 12);
+			char   type  = (char) header[156];
+			long   padded = (size + BLOCK - 1) / BLOCK * BLOCK;
+
+			switch (type) {
+			case 'L':       // GNU long name, the name is the data
+			case 'x':       // pax header, path= may carry the name
+				byte[] data = readData(in, size, padded);
+				longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data);
+				break;
+			case 'g':       // pax global header, nothing we use
+				skip(in, padded);
+				break;
+			case '5':
+				skip(in, padded);
+				directory(name, mode);
+				break;
+			case '2':
+				skip(in, padded);
+				symlink(name, cString(header, 157, 100));
+				break;
+			case '0':
+			case '\0':
+			case '7':
+				file(in, name, mode, size, padded);
+				break;
+			default:        // Hard links, devices, etc: not in our packages
+				skip(in, padded);
+				out.println("? " + name + " (type " + type + " skipped)");
+				break;
+			}
+		}
+	}
+
+	private void directory(String name, int mode) throws IOException {
+		entries++;
+		out.println("d " + name);
+		if (dryRun)
+			return;
+		File d = target(name);
+		makeDirs(d);
+		dirModes.add(new Object[] { d, Integer.valueOf(mode) });
+	}
+
+	// mkdirs, remembering each one it made for rollback()
+	private void makeDirs(File d) throws IOException {
+		if (d == null || d.isDirectory())
+			return;
+		makeDirs(d.getParentFile());
+		if (!d.mkdir() && !d.isDirectory())
+			throw new IOException("Cannot create " + d);
+		created.add(d);
+	}
+
+	private void symlink(String name, String target) throws IOException {
+		entries++;
+		out.println("l " + name + " -> " + target);
+		if (!dryRun) {
+			links.add(target);
+			links.add(target(name).getPath());
+		}
+	}
+
+	private void file(InputStream in, String name, int mode, long size, long padded) throws IOException {
+		entries++;
+		bytes += size;
+		out.println("x " + name + " (" + size + " bytes)");
+		if (dryRun) {
+			skip(in, padded);
+			return;
+		}
+		File f   = target(name);
+		File tmp = new File(f.getPath() + TMP_SUFFIX);
+		makeDirs(f.getParentFile());
+		FileOutputStream fo = new FileOutputStream(tmp);
+		pending.add(new File[] { tmp, f });
+		try {
+			long left = size;
+			while (left > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+				if (n < 0)
+					throw new EOFException("Truncated archive at " + name);
+				fo.write(buf, 0, n);
+				left -= n;
+			}
+		} finally {
+			fo.close();
+		}
+		skip(in, padded - size);
+		setMode(tmp, fileMode >= 0 ? fileMode : mode);
+	}
+
+	// Owner bits as they are, group/other collapsed into "everybody"
+	// (all java.io.File can do: enough for 644 / 755 / 600 / 700)
+	static void setMode(File f, int mode) {
+		f.setReadable(false, false);
+		f.setWritable(false, false);
+		f.setExecutable(false, false);
+		f.setReadable((mode & 0400) != 0, (mode & 0044) == 0);
+		f.setWritable((mode & 0200) != 0, (mode & 0022) == 0);
+		f.setExecutable((mode & 0100) != 0, (mode & 0011) == 0);
+	}
+
+	private void commit() throws IOException {
+		for (File[] p : pending) {
+			p[1].delete();
+			if (!p[0].renameTo(p[1]))
+				throw new IOException("Cannot rename " + p[0] + " to " + p[1]);
+		}
+		pending.clear();
+		created.clear();
+		for (Object[] d : dirModes)
+			setMode((File) d[0], ((Integer) d[1]).intValue());
+		dirModes.clear();
+		// java.io can't do symlinks, these are rare enough to exec ln
+		for (int i = 0; i < links.size(); i += 2) {
+			new File(links.get(i + 1)).delete();
+			try {
+				Runtime.getRuntime().exec(new String[] { "ln", "-s", links.get(i), links.get(i + 1) }).waitFor();
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			}
+		}
+	}
+
+	private void rollback() {
+		for (File[] p : pending)
+			p[0].delete();
+		pending.clear();
+		// Deepest first, each is empty once what we put in it is gone
+		for (int i = created.size() - 1; i >= 0; i--)
+			created.get(i).delete();
+		created.clear();
+		dirModes.clear();
+	}
+
+	// Never outside root, whatever the archive says
+	private File target(String name) throws IOException {
+		String n = name;
+		while (n.startsWith("/") || n.startsWith("./"))
+			n = n.substring(n.startsWith("/") ? 1 : 2);
+		if (n.equals("..") || n.startsWith("../") || n.contains("/../") || n.endsWith("/.."))
+			throw new IOException("Refusing path " + name);
+		return new File(root, n);
+	}
+
+	/// Tar header fields //////////////////////////////////
+	private String entryName() {
+		String name = cString(header, 0, 100);
+		// ustar: prefix/name
+		if (header[257] == 'u' && header[258] == 's' && header[345] != 0)
+			name = cString(header, 345, 155) + "/" + name;
+		return name;
+	}
+
+	private long octal(int off, int len) {
+		long v = 0;
+		for (int i = off; i < off + len; i++) {
+			byte b = header[i];
+			if (b == 0 || b == ' ') {
+				if (v != 0)
+					break;
+				continue;
+			}
+			v = v * 8 + (b - '0');
+		}
+		return v;
+	}
+
+	private static String cString(byte[] b, int off, int len) {
+		int end = off;
+		while (end < off + len && b[end] != 0)
+			end++;
+		try {
+			return new String(b, off, end - off, "UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			return new String(b, off, end - off);
+		}
+	}
+
+	// "<len> path=<name>\n" records
+	private static String paxPath(byte[] data) {
+		String s = cString(data, 0, data.length);
+		for (String rec : s.split("\n")) {
+			int p = rec.indexOf(" path=");
+			if (p > 0)
+				return rec.substring(p + 6);
+		}
+		return null;
+	}
+
+	private static boolean isZero(byte[] b) {
+		for (byte x : b) {
+			if (x != 0)
+				return false;
+		}
+		return true;
+	}
+	////////////////////////////////////////////////////////
+
+	private byte[] readData(InputStream in, long size, long padded) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream((int) size);
+		long left = size;
+		while (left > 0) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+			if (n < 0)
+				throw new EOFException("Truncated archive");
+			bo.write(buf, 0, n);
+			left -= n;
+		}
+		skip(in, padded - size);
+		return bo.toByteArray();
+	}
+
+	private void skip(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			int r = in.read(buf, 0, (int) Math.min(buf.length, n));
+			if (r < 0)
+				throw new EOFException("Truncated archive");
+			n -= r;
+		}
+	}
+
+	private static boolean readFully(InputStream in, byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n = in.read(b, off, len - off);
+			if (n < 0) {
+				if (off == 0)
+					return false;
+				throw new EOFException("Truncated archive");
+			}
+			off += n;
+		}
+		return true;
+	}
+
+	public static void main(String[] args) {
+		File    root     = new File("/");
+		String  md5      = null;
+		int     fileMode = -1;
+		boolean dryRun   = false;
+		String  archive  = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n"))
+				dryRun = true;
+			else if (args[i].equals("-C") && i + 1 < args.length)
+				root = new File(args[++i]);
+			else if (args[i].equals("-m") && i + 1 < args.length)
+				md5 = args[++i];
+			else if (args[i].equals("-f") && i + 1 < args.length)
+				fileMode = Integer.parseInt(args[++i], 8);
+			else
+				archive = args[i];
+		}
+		if (archive == null) {
+			System.err.println("Usage: TarGzInstaller [-n] [-C <root>] [-m <md5>] [-f <mode>] <archive>");
+			System.exit(2);
+		}
+		try {
+			new TarGzInstaller(root, md5, fileMode, dryRun, System.out).install(new File(archive));
+		} catch (IOException e) {
+			System.out.println("Error: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
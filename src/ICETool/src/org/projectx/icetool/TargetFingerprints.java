@@ -0,0 +1,122 @@
+package org.projectx.icetool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+// Tells whether an action would change anything: every file it copies
+// (TARGETS lines of the setup manifest) already has the contents of its
+// source. Fingerprints (MD5) are remembered per path, size and mtime in
+// a small file, so the same bootanimation.zip is not hashed twice.
+public class TargetFingerprints {
+	static final String FILE = "fingerprints";
+
+	private final File file;
+	private final HashMap<String, String> known = new HashMap<String, String>(); // path -> "size mtime md5"
+	private boolean loaded = false;
+	private boolean dirty  = false;
+
+	public TargetFingerprints(File file) {
+		this.file = file;
+	}
+
+	/// Singleton //////////////////////////////////////////
+	private static TargetFingerprints INSTANCE = null;
+
+	public synchronized static TargetFingerprints getInstance(Context context) {
+		if (INSTANCE == null) {
+			INSTANCE = new TargetFingerprints(new File(context.getApplicationContext().getFilesDir(), FILE));
+		}
+		return INSTANCE;
+	}
+	////////////////////////////////////////////////////////
+
+	// True when the action is known and running it would be a no-op
+	public boolean isApplied(SetupManifest manifest, String action) {
+		String[] targets = manifest.getTargets(action.trim());
+		if (targets == null)
+			return false;
+		boolean applied = true;
+		for (String t : targets) {
+			if (t.equals(SetupManifest.TARGET_RUNS))
+				continue;
+			int eq = t.indexOf('=');
+			if (eq < 0 || !same(new File(t.substring(0, eq)), new File(t.substring(eq + 1)))) {
+				applied = false;
+				break;
+			}
+		}
+		save();
+		return applied;
+	}
+
+	private boolean same(File src, File dst) {
+		if (!src.isFile() || !dst.isFile() || src.length() != dst.length())
+			return false;
+		String a = fingerprint(src), b = fingerprint(dst);
+		return a != null && a.equals(b);
+	}
+
+	private synchronized String fingerprint(File f) {
+		load();
+		String key   = f.length() + " " + f.lastModified();
+		String entry = known.get(f.getPath());
+		if (entry != null && entry.startsWith(key + " "))
+			return entry.substring(key.length() + 1);
+		try {
+			String md5 = DownloadEngine.md5Of(f);
+			known.put(f.getPath(), key + " " + md5);
+			dirty = true;
+			return md5;
+		} catch (IOException e) {
+			// Not readable without root, can't tell
+			return null;
+		}
+	}
+
+	private void load() {
+		if (loaded)
+			return;
+		loaded = true;
+		if (!file.isFile())
+			return;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(file));
+			try {
+				String l;
+				while ((l = br.readLine()) != null) {
+					int tab = l.indexOf('\t');
+					if (tab > 0)
+						known.put(l.substring(0, tab), l.substring(tab + 1));
+				}
+			} finally {
+				br.close();
+			}
+		} catch (IOException e) {
+			known.clear();
+		}
+	}
+
+	private synchronized void save() {
+		if (!dirty)
+			return;
+		dirty = false;
+		try {
+			FileWriter w = new FileWriter(file);
+			try {
+				for (Map.Entry<String, String> e : known.entrySet())
+					w.write(e.getKey() + "\t" + e.getValue() + "\n");
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			// Only a cache
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package org.projectx.icetool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Properties;
+
+// Self upgrade of icetool, file by file. The server publishes (see
+// icetool-pkg/refresh.sh) icetool.manifest:
+//
+//   version <version>
+//   <md5> <size> <mode> <path>          one per file, path from /
+//
+// and every file as <files url>/<md5>. The manifest is asked for with
+// If-None-Match / If-Modified-Since, so a check with nothing new costs a
+// 304. Only the files whose MD5 differs from the installed ones are
+// downloaded (staged in the state dir, verified), then applied together:
+// each is written next to its target and renamed over it, the old one
+// kept until all of them made it, and put back if any of them fails.
+//
+// Runs as root from icetool (see UpgradeICETool there):
+//   CLASSPATH=<ICETool.apk> app_process /system/bin org.projectx.icetool.UpgradeEngine \
+//       [-s <state dir>] check|fetch|apply <manifest url> <files url> <root>
+//
+//   check  print the latest version
+//   fetch  stage what changed. Exits EXIT_STAGED if something did, so
+//          icetool only remounts /system when there is something to apply
+//   apply  install what fetch staged, with rollback
+//
+// Exits EXIT_NO_MANIFEST when the server has no manifest, icetool then
+// upgrades from the whole icetool.tgz as before.
+public class UpgradeEngine {
+	static final String STATE_DIR     = "/data/tmp/icetool-upgrade";
+	static final String MANIFEST      = "icetool.manifest";
+	static final String STATE         = "state";
+	static final String STAGED        = "staged";
+	static final String PLAN          = "plan";
+	static final String NEW_SUFFIX    = ".icenew";
+	static final String OLD_SUFFIX    = ".iceold";
+	static final int    CONNECT_TIMEOUT = 15000;
+	static final int    READ_TIMEOUT    = 30000;
+
+	static final int EXIT_OK          = 0;
+	static final int EXIT_ERROR       = 1;
+	static final int EXIT_NO_MANIFEST = 3;
+	static final int EXIT_STAGED      = 10;
+
+	static class Entry {
+		String md5;
+		long   size;
+		int    mode;
+		String path;
+	}
+
+	static class Manifest {
+		String           version = "";
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+	}
+
+	static class NoManifestException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NoManifestException(String msg) {
+			super(msg);
+		}
+	}
+
+	private final File        stateDir;
+	private final File        root;
+	private final String      manifestUrl;
+	private final String      filesUrl;
+	private final PrintStream out;
+	private final EventWriter events;
+	private final Properties  state = new Properties();
+
+	public UpgradeEngine(File stateDir, String manifestUrl, String filesUrl, File root, PrintStream out) {
+		this.stateDir    = stateDir;
+		this.manifestUrl = manifestUrl;
+		this.filesUrl    = filesUrl;
+		this.root        = root;
+		this.out         = out;
+		this.events      = new EventWriter(out);
+	}
+
+	/// Manifest ///////////////////////////////////////////
+	// The latest manifest, from the server or, when it says nothing
+	// changed, from the copy kept last time. notModified[0] tells which
+	private Manifest latest(boolean[] notModified) throws IOException {
+		File cached = new File(stateDir, MANIFEST);
+		HttpURLConnection conn = (HttpURLConnection) new URL(manifestUrl).openConnection();
+		try {
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			conn.setReadTimeout(READ_TIMEOUT);
+			conn.setUseCaches(false);
+			if (cached.isFile()) {
+				if (state.getProperty("etag") != null)
+					conn.setRequestProperty("If-None-Match", state.getProperty("etag"));
+				if (state.getProperty("modified") != null)
+					conn.setRequestProperty("If-Modified-Since", state.getProperty("modified"));
+			}
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached.isFile()) {
+				notModified[0] = true;
+				return parse(new String(readAll(new FileInputStream(cached)), "UTF-8"));
+			}
+			if (code == HttpURLConnection.HTTP_NOT_FOUND)
+				throw new NoManifestException("No " + manifestUrl);
+			if (code != HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP " + code + " for " + manifestUrl);
+			String body = new String(readAll(conn.getInputStream()), "UTF-8");
+			Manifest m = parse(body);
+			write(cached, body);
+			setState("etag", conn.getHeaderField("ETag"));
+			setState("modified", conn.getHeaderField("Last-Modified"));
+			state.remove("current");
+			return m;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	static Manifest parse(String text) throws IOException {
+		Manifest m = new Manifest();
+		BufferedReader br = new BufferedReader(new StringReader(text));
+		String l;
+		while ((l = br.readLine()) != null) {
+			l = l.trim();
+			if (l.length() == 0 || l.startsWith("#"))
+				continue;
+			if (l.startsWith("version ")) {
+				m.version = l.substring(8).trim();
+				continue;
+			}
+			String[] f = l.split("\\s+", 4);
+			try {
+				Entry e = new Entry();
+				e.md5  = f[0].toLowerCase();
+				e.size = Long.parseLong(f[1]);
+				e.mode = Integer.parseInt(f[2], 8);
+				e.path = safePath(f[3]);
+				m.entries.add(e);
+			} catch (RuntimeException ex) {
+				throw new NoManifestException("Bad manifest line: " + l);
+			}
+		}
+		if (m.entries.isEmpty())
+			throw new NoManifestException("Empty manifest");
+		return m;
+	}
+
+	// Never outside root, whatever the manifest says
+	private static String safePath(String p) {
+		while (p.startsWith("/") || p.startsWith("./"))
+			p = p.substring(p.startsWith("/") ? 1 : 2);
+		if (p.length() == 0 || p.equals("..") || p.startsWith("../") || p.contains("/../") || p.endsWith("/.."))
+			throw new IllegalArgumentException(p);
+		return p;
+	}
+
+	// Entries whose installed file differs (size first, then MD5)
+	private ArrayList<Entry> changed(Manifest m) throws IOException {
+		ArrayList<Entry> todo = new ArrayList<Entry>();
+		for (Entry e : m.entries) {
+			File f = new File(root, e.path);
+			if (!f.isFile() || f.length() != e.size || !e.md5.equals(DownloadEngine.md5Of(f)))
+				todo.add(e);
+		}
+		return todo;
+	}
+
+	// Size and mtime of the installed files, what "current" was true for.
+	// Anything touching them (a reflash, a manual copy) makes it stale
+	private String installedStamp(Manifest m) {
+		StringBuilder sb = new StringBuilder();
+		for (Entry e : m.entries) {
+			File f = new File(root, e.path);
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(f.isFile() ? f.length() + ":" + f.lastModified() : "-");
+		}
+		return sb.toString();
+	}
+	////////////////////////////////////////////////////////
+
+	public int check() throws IOException {
+		loadState();
+		boolean[] notModified = { false };
+		Manifest m = latest(notModified);
+		saveState();
+		out.println("Latest version available: " + m.version + (notModified[0] ? " (not modified)" : ""));
+		return EXIT_OK;
+	}
+
+	public int fetch() throws IOException {
+		loadState();
+		boolean[] notModified = { false };
+		Manifest m = latest(notModified);
+		File staged = new File(stateDir, STAGED);
+		if (notModified[0] && installedStamp(m).equals(state.getProperty("current")) &&
+				!new File(staged, PLAN).isFile()) {
+			out.println("ICETool " + m.version + " is up to date (not modified)");
+			return EXIT_OK;
+		}
+		ArrayList<Entry> todo = changed(m);
+		if (todo.isEmpty()) {
+			state.setProperty("current", installedStamp(m));
+			saveState();
+			delete(staged);
+			out.println("ICETool " + m.version + " is up to date");
+			return EXIT_OK;
+		}
+
+		events.step("upgrade download");
+		staged.mkdirs();
+		long total = 0, done = 0;
+		for (Entry e : todo)
+			total += e.size;
+		StringBuilder plan = new StringBuilder("version " + m.version + "\n");
+		for (Entry e : todo) {
+			DownloadEngine.Download d = new DownloadEngine.Download(filesUrl + "/" + e.md5,
+					new File(staged, e.md5), e.md5);
+			DownloadEngine.fetch(d, null);
+			if (!d.isOk()) {
+				events.end(1, "upgrade download");
+				throw new IOException("Cannot download " + e.path + ": " + d.getError());
+			}
+			done += e.size;
+			events.bytes(done, total, "upgrade download");
+			out.println("  " + e.path + " (" + e.size + " bytes)");
+			plan.append(e.md5).append(' ').append(e.size).append(' ')
+				.append(Integer.toOctalString(e.mode)).append(' ').append(e.path).append('\n');
+		}
+		write(new File(staged, PLAN), plan.toString());
+		saveState();
+		events.end(0, "upgrade download");
+		out.println(todo.size() + " of " + m.entries.size() + " files to update to ICETool " + m.version +
+				" (" + total + " bytes)");
+		return EXIT_STAGED;
+	}
+
+	// All the staged files or none of them
+	public int apply() throws IOException {
+		loadState();
+		File staged = new File(stateDir, STAGED);
+		File planFile = new File(staged, PLAN);
+		if (!planFile.isFile()) {
+			out.println("Nothing to apply");
+			return EXIT_OK;
+		}
+		Manifest plan = parse(new String(readAll(new FileInputStream(planFile)), "UTF-8"));
+		ArrayList<File[]> done = new ArrayList<File[]>();     // { target, backup or null }
+		// Nothing is touched unless every staged file is good
+		for (Entry e : plan.entries) {
+			if (!e.md5.equals(DownloadEngine.md5Of(new File(staged, e.md5)))) {
+				delete(staged);
+				throw new IOException("Staged " + e.path + " is corrupt, fetch again");
+			}
+		}
+		events.step("upgrade apply");
+		try {
+			for (Entry e : plan.entries) {
+				File src = new File(staged, e.md5);
+				File dst = new File(root, e.path);
+				File tmp = new File(dst.getPath() + NEW_SUFFIX);
+				File old = new File(dst.getPath() + OLD_SUFFIX);
+				File dir = dst.getParentFile();
+				if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Cannot create " + dir);
+				copy(src, tmp);
+				TarGzInstaller.setMode(tmp, e.mode);
+				old.delete();
+				if (dst.exists() && !dst.renameTo(old)) {
+					tmp.delete();
+					throw new IOException("Cannot move " + dst + " aside");
+				}
+				done.add(new File[] { dst, old.exists() ? old : null });
+				if (!tmp.renameTo(dst)) {
+					tmp.delete();
+					throw new IOException("Cannot rename " + tmp + " to " + dst);
+				}
+				out.println("  " + dst);
+				events.progress(done.size(), plan.entries.size(), "upgrade apply");
+			}
+		} catch (IOException e) {
+			rollback(done);
+			events.end(1, "upgrade apply");
+			throw e;
+		}
+		for (File[] d : done) {
+			if (d[1] != null)
+				d[1].delete();
+		}
+		delete(staged);
+		// Files the plan left alone were checked by fetch against the same manifest
+		File cached = new File(stateDir, MANIFEST);
+		if (cached.isFile())
+			state.setProperty("current",
+					installedStamp(parse(new String(readAll(new FileInputStream(cached)), "UTF-8"))));
+		else
+			state.remove("current");
+		saveState();
+		events.end(0, "upgrade apply");
+		out.println("ICETool v" + plan.version + " succesfully installed (" + done.size() + " files). " +
+				"Please restart ICETool");
+		return EXIT_OK;
+	}
+
+	// Latest first, so a file replaced twice ends as it was
+	private void rollback(ArrayList<File[]> done) {
+		for (int i = done.size() - 1; i >= 0; i--) {
+			File dst = done.get(i)[0], old = done.get(i)[1];
+			if (old != null) {
+				dst.delete();
+				old.renameTo(dst);
+			} else {
+				dst.delete();
+			}
+			out.println("  rolled back " + dst);
+		}
+	}
+
+	/// State //////////////////////////////////////////////
+	private void loadState() throws IOException {
+		stateDir.mkdirs();
+		File f = new File(stateDir, STATE);
+		if (!f.isFile())
+			return;
+		FileInputStream in = new FileInputStream(f);
+		try {
+			state.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void saveState() throws IOException {
+		File tmp = new File(stateDir, STATE + NEW_SUFFIX);
+		FileOutputStream o = new FileOutputStream(tmp);
+		try {
+			state.store(o, "UpgradeEngine");
+		} finally {
+			o.close();
+		}
+		if (!tmp.renameTo(new File(stateDir, STATE)))
+			throw new IOException("Cannot save " + tmp);
+	}
+
+	private void setState(String key, String value) {
+		if (value == null)
+			state.remove(key);
+		else
+			state.setProperty(key, value);
+	}
+	////////////////////////////////////////////////////////
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			byte[] buf = new byte[DownloadEngine.BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buf)) != -1)
+				bo.write(buf, 0, n);
+			return bo.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File f, String text) throws IOException {
+		File tmp = new File(f.getPath() + NEW_SUFFIX);
+		FileWriter w = new FileWriter(tmp);
+		try {
+			w.write(text);
+		} finally {
+			w.close();
+		}
+		if (!tmp.renameTo(f))
+			throw new IOException("Cannot write " + f);
+	}
+
+	private static void copy(File s, File d) throws IOException {
+		FileInputStream in = new FileInputStream(s);
+		try {
+			FileOutputStream o = new FileOutputStream(d);
+			try {
+				byte[] buf = new byte[DownloadEngine.BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buf)) != -1)
+					o.write(buf, 0, n);
+				o.getFD().sync();
+			} finally {
+				o.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void delete(File f) {
+		String[] names = f.list();
+		for (String n : names == null ? new String[0] : names)
+			delete(new File(f, n));
+		f.delete();
+	}
+
+	public static void main(String[] args) {
+		String stateDir = STATE_DIR;
+		int i = 0;
+		if (args.length > 1 && args[0].equals("-s")) {
+			stateDir = args[1];
+			i = 2;
+		}
+		if (args.length - i != 4) {
+			System.err.println("Usage: UpgradeEngine [-s <state dir>] check|fetch|apply " +
+					"<manifest url> <files url> <root>");
+			System.exit(2);
+		}
+		UpgradeEngine engine = new UpgradeEngine(new File(stateDir), args[i + 1], args[i + 2],
+				new File(args[i + 3]), System.out);
+		int rc;
+		try {
+			if (args[i].equals("check"))
+				rc = engine.check();
+			else if (args[i].equals("fetch"))
+				rc = engine.fetch();
+			else if (args[i].equals("apply"))
+				rc = engine.apply();
+			else
+				throw new IllegalArgumentException("Unknown mode " + args[i]);
+		} catch (NoManifestException e) {
+			System.out.println(e.getMessage());
+			rc = EXIT_NO_MANIFEST;
+		} catch (Exception e) {
+			System.out.println("Upgrade failed: " + e.getMessage());
+			rc = EXIT_ERROR;
+		}
+		System.exit(rc);
+	}
+}
@@ -0,0 +1,20 @@
+#!/bin/sh
+# Builds the Android free ICETool classes with the tests and runs them
+# in a plain JVM:
+#
+#   ./run.sh [test class...]
+#
+# No Android SDK needed: only the classes listed in CORE are compiled.
+cd `dirname $0`
+SRC=../src/org/projectx/icetool
+OUT=${TEST_OUT:-${TMPDIR:-/tmp}/icetool-test}
+
+CORE="ManifestParser SetupManifest"
+TESTS=${*:-ManifestParserTest}
+
+rm -rf $OUT && mkdir -p $OUT || exit 1
+javac -nowarn -d $OUT `for c in $CORE; do echo $SRC/$c.java; done` \
+  `find src -name '*.java'` || exit 1
+for t in $TESTS; do
+  java -ea -cp $OUT org.projectx.icetool.$t || exit 1
+done
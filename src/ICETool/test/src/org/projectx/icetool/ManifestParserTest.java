@@ -0,0 +1,154 @@
+package org.projectx.icetool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+// ManifestParser / SetupManifest in a plain JVM (see test/run.sh): the
+// splitting rules ICESetup always had, chunked input, change detection
+// and raw lines. Fails with the first check that doesn't hold.
+public class ManifestParserTest {
+	static final String MANIFEST =
+		"ICETOOL_VERSION:1.2.3\n" +
+		"COMMANDS:bootanim@ril@clean@gpsconf@@\n" +
+		"CATEGORIES:actions@ril@\n" +
+		"CATEGORY_COMMANDS:actions:bootanim@clean@\n" +
+		"CATEGORY_COMMANDS:ril:ril\n" +
+		"OPTIONS:bootanim:stock@nexus@@:ignored@this\n" +
+		"DESCRIPTIONS:bootanim:Stock one@Nexus \u00e9t\u00e9 \u2603@\n" +
+		"OPTIONS:ril:showril@2.2@\n" +
+		"OPTIONS:clean:\n" +
+		"RESOURCES:ril:radio@system\n" +
+		"SETTING:BASE_URL=http://example.com:8080/ice\n" +
+		"CHECKSUMS:extrapkg:htcime.tgz=0123456789abcdef0123456789abcdef@\n" +
+		"TARGETS:bootanim nexus:/sdcard/nexus.zip=/data/local/bootanimation.zip\n" +
+		"TARGETS:ril 2.2:/sdcard/ril.so=/system/lib/libril.so@!\n" +
+		"some noise line\n";
+
+	static int checks = 0;
+
+	static void check(boolean ok, String what) {
+		checks++;
+		if (!ok)
+			throw new AssertionError(what);
+	}
+
+	static void checkEquals(Object expected, Object actual, String what) {
+		boolean ok = expected == null ? actual == null :
+			expected instanceof Object[] ? Arrays.equals((Object[]) expected, (Object[]) actual) :
+			expected.equals(actual);
+		check(ok, what + ": expected " + str(expected) + ", got " + str(actual));
+	}
+
+	static String str(Object o) {
+		return o instanceof Object[] ? Arrays.toString((Object[]) o) : String.valueOf(o);
+	}
+
+	static SetupManifest parse(String text, boolean keepRaw) throws IOException {
+		return ManifestParser.parse(new StringReader(text), keepRaw);
+	}
+
+	/// Tests //////////////////////////////////////////////
+	static void testSplitting() throws IOException {
+		SetupManifest m = parse(MANIFEST, false);
+		checkEquals("1.2.3", m.getVersion(), "version");
+		// Trailing empty tokens dropped; commands only named by other
+		// lines come after the COMMANDS ones, as not supported
+		checkEquals(new String[] { "bootanim", "ril", "clean", "gpsconf", "extrapkg" },
+				commands(m), "commands");
+		check(m.isSupported(m.indexOfCommand("gpsconf")) && !m.isSupported(m.indexOfCommand("extrapkg")),
+				"supported commands");
+		checkEquals(new String[] { "stock", "nexus" }, m.getOptions(m.indexOfCommand("bootanim")),
+				"values stop at ':'");
+		checkEquals(new String[] { "bootanim stock", "bootanim nexus" }, m.getCommandOptions("bootanim"),
+				"actions are '<command> <option>'");
+		checkEquals(new String[] { "Stock one", "Nexus \u00e9t\u00e9 \u2603" }, m.getCommandDescriptions("bootanim"),
+				"descriptions");
+		checkEquals(new String[] { "ril showril", "ril 2.2" }, m.getCommandOptions("ril"), "ril actions");
+		checkEquals(new String[] { "clean" }, m.getCommandOptions("clean"),
+				"a command with no options is its own action");
+		checkEquals(null, m.getCommandOptions("gpsconf"), "a command with no OPTIONS line has no actions");
+		check(!m.hasCommand("gpsconf") && m.hasCommand("clean"), "hasCommand");
+		checkEquals(new String[] { "radio", "system" }, m.getCommandResources("ril"), "resources");
+		checkEquals(2, m.getCategoryCount(), "categories");
+		checkEquals(new String[] { "bootanim stock", "bootanim nexus", "clean" },
+				m.getCategoryActions("actions"), "category actions");
+		checkEquals(new String[] { "Stock one", "Nexus \u00e9t\u00e9 \u2603", "clean" },
+				m.getCategoryDescriptions("actions"), "undescribed actions describe themselves");
+		checkEquals("http://example.com:8080/ice", m.getSetting("BASE_URL", null), "settings keep their ':'");
+		checkEquals("0123456789abcdef0123456789abcdef", m.getDownloadChecksum("extrapkg htcime.tgz"), "checksums");
+		checkEquals(new String[] { "/sdcard/nexus.zip=/data/local/bootanimation.zip" },
+				m.getTargets("bootanim nexus"), "targets");
+		check(m.isCopyOnly("bootanim nexus") && !m.isCopyOnly("ril 2.2") && !m.isCopyOnly("clean"),
+				"'!' targets are not copy-only");
+	}
+
+	static String[] commands(SetupManifest m) {
+		String[] c = new String[m.getCommandCount()];
+		for (int i = 0; i < c.length; i++)
+			c[i] = m.getCommand(i);
+		return c;
+	}
+
+	// Any chunking gives the same manifest as the whole text
+	static void testChunks() throws IOException {
+		SetupManifest whole = parse(MANIFEST, true);
+		for (int size = 1; size <= 17; size++) {
+			ManifestParser p = new ManifestParser(true);
+			for (int i = 0; i < MANIFEST.length(); i += size)
+				p.feed(MANIFEST.substring(i, Math.min(MANIFEST.length(), i + size)));
+			SetupManifest m = p.finish();
+			checkEquals(whole.getRawData(), m.getRawData(), "raw data, chunks of " + size);
+			checkEquals(whole.getChecksum(), m.getChecksum(), "checksum, chunks of " + size);
+			checkEquals(whole.getCommandDescriptions("bootanim"), m.getCommandDescriptions("bootanim"),
+					"descriptions, chunks of " + size);
+		}
+
+		// Bytes split in the middle of multibyte characters
+		final byte[] utf8 = MANIFEST.getBytes("UTF-8");
+		InputStream oneByte = new ByteArrayInputStream(utf8) {
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+		SetupManifest m = ManifestParser.parse(oneByte, true);
+		checkEquals(whole.getRawData(), m.getRawData(), "raw data, one byte at a time");
+		checkEquals(whole.getCommandDescriptions("bootanim"), m.getCommandDescriptions("bootanim"),
+				"multibyte descriptions, one byte at a time");
+
+		// Last line without '\n'
+		m = parse(MANIFEST.trim() + "\nOPTIONS:gpsconf:eu@us", false);
+		checkEquals(new String[] { "gpsconf eu", "gpsconf us" }, m.getCommandOptions("gpsconf"), "unterminated last line");
+	}
+
+	static void testChecksum() throws IOException {
+		long base = parse(MANIFEST, false).getChecksum();
+		checkEquals(base, parse(MANIFEST.replace("\n", "\r\n"), false).getChecksum(), "CRLF is the same manifest");
+		checkEquals(base, parse(MANIFEST + "more noise\n\n", false).getChecksum(), "ignored lines don't count");
+		check(base != parse(MANIFEST.replace("2.2", "2.3"), false).getChecksum(), "an option changed");
+		// Same low byte, only the high one differs
+		check(base != parse(MANIFEST.replace('\u00e9', '\u01e9'), false).getChecksum(), "a non ASCII char changed");
+	}
+
+	static void testRaw() throws IOException {
+		checkEquals(null, parse(MANIFEST, false).getRawData(), "no raw data unless asked");
+		String raw = parse(MANIFEST, true).getRawData();
+		check(raw != null && raw.startsWith("ICETOOL_VERSION:1.2.3\n") && !raw.contains("noise"),
+				"raw data has the manifest lines only");
+		// Parsing the raw data gives the same manifest (the cache)
+		SetupManifest again = parse(raw, true);
+		checkEquals(raw, again.getRawData(), "raw data round trip");
+		checkEquals(parse(MANIFEST, false).getChecksum(), again.getChecksum(), "checksum round trip");
+	}
+	////////////////////////////////////////////////////////
+
+	public static void main(String[] args) throws Exception {
+		testSplitting();
+		testChunks();
+		testChecksum();
+		testRaw();
+		System.out.println("ManifestParserTest: " + checks + " checks OK");
+	}
+}
@@ -18,32 +18,16 @@ function FindResources() {
 # Updates metafiles with specific files
 # Prevents broken builds of framework-res
 # with apktool b
-# FIXME - dirty as 7za u does not work
+# Entries are copied from the original apk as they are,
+# the rest of the apk isn't recompressed
 function UpdateMeta() {
   local APK_FILE=$1
-  local META_DIR=$2
-  local TMP_DIR=$1.tmp
+  local ORIG_APK=$2
 
-  ShowMessage "  [MOD|7zu]  " $APK_FILE
+  ShowMessage "  [MOD|meta] " $APK_FILE
 
-  # Temp dir
-  CUR_DIR=`pwd`
-  rm -rf $TMP_DIR
-  mkdir -p $TMP_DIR
+  BuildTool ZipRewriter $APK_FILE $APK_FILE $ORIG_APK META-INF AndroidManifest.xml &>> $LOG || exit 1
 
-  # Extract
-  7za x -tzip -o$TMP_DIR $APK_FILE  &>> $LOG || exit 1
-  rm -f $APK_FILE
-
-  # Copy resources
-  cd $META_DIR
-  cp -av META-INF AndroidManifest.xml $TMP_DIR &>> $LOG || exit 1
-
-  # Repack
-  cd $TMP_DIR
-  7za a -tzip -mx9  $APK_FILE *     &>> $LOG || exit 1
-
-  cd $CUR_DIR
   return 0
 }
 
@@ -90,9 +74,6 @@ if [ -f "$APK" ]; then
 
   # Preserve the original file and META's (META-INF, AndroidManifest.xml)
   cp -p $APK $TMP_APK.orig.apk
-  ShowMessage "  [MOD|7zx]  " `basename $APK`
-  rm -rf "$OUT_DIR.orig"
-  7za x -o"$OUT_DIR.orig" ${TMP_APK}.orig.apk &>> $LOG || exit 1
 
   # apktool method
   # We decrypt and rebuild using apktool
@@ -121,7 +102,7 @@ if [ -f "$APK" ]; then
     java -jar $APKTOOL b $OUT_DIR ${TMP_APK}.step1.apk &>> $LOG || exit 1
 
     # Fix broken meta and AndroidManifest.xml
-    UpdateMeta ${TMP_APK}.step1.apk ${OUT_DIR}.orig || exit 1
+    UpdateMeta ${TMP_APK}.step1.apk ${TMP_APK}.orig.apk || exit 1
 
     # Move away and preserve intermediary directory
     mv $OUT_DIR $OUT_DIR.step1
@@ -135,34 +116,14 @@ if [ -f "$APK" ]; then
   fi
 
   # 7z method
-  # We just rebuild the zip with new resources
-  # We could use 7za -u but for some reasons android refuses
-  # to load this way, so we repack the whole dir
+  # We just rebuild the zip with new resources: unchanged entries
+  # are copied as they are, new ones compressed (images stored and
+  # aligned), no 7za -u as android refuses to load its output
   # $APK.step1 => $APK.step2
   if [ "$APKMOD_METHOD" = "7z" ]; then
 
-    ShowMessage "  [MOD|7zx]  " `basename ${TMP_APK}.step1.apk`
-    7za x -o"$OUT_DIR" ${TMP_APK}.step1.apk &>> $LOG || exit 1
-
-    # Copy
-    for i in $XML $IMG; do
-       cp -av $MOD_DIR/$i $OUT_DIR/$i &>> $LOG
-    done
-
-    # Optimize png?
- 		#find "$OUT_DIR/res" -name *.png | while read PNG_FILE ;
- 		#do
- 		#	if [ `echo "$PNG_FILE" | grep -c "\.9\.png$"` -eq 0 ] ; then
- 		#		optipng -o99 "$PNG_FILE"
- 		#	fi
- 		#done
-
-    # Repack the whole dir
-    ShowMessage "  [MOD|7za]  " `basename ${TMP_APK}.step2.apk`
-    cd $OUT_DIR
-    7za a -tzip ${TMP_APK}.step2.apk * -mx9 &>> $LOG || exit 1
-    cd - >> $LOG 2>&1
-    mv $OUT_DIR $OUT_DIR.step2
+    ShowMessage "  [MOD|zip]  " `basename ${TMP_APK}.step2.apk`
+    BuildTool ZipRewriter ${TMP_APK}.step1.apk ${TMP_APK}.step2.apk $MOD_DIR $XML $IMG &>> $LOG || exit 1
 
   else
 
@@ -180,7 +141,7 @@ if [ -f "$APK" ]; then
     # Overwrite original metas
     ShowMessage "  [MOD|meta] " `basename ${TMP_APK}.step2.apk` " => " `basename ${TMP_APK}.step3.apk`
     cp -p ${TMP_APK}.step2.apk ${TMP_APK}.step3.apk
-    UpdateMeta ${TMP_APK}.step3.apk ${OUT_DIR}.orig || exit 1
+    UpdateMeta ${TMP_APK}.step3.apk ${TMP_APK}.orig.apk || exit 1
   fi
 
   # Last step overwrites original apk
@@ -335,13 +335,17 @@ if [ "$DO_BLACKICE" = "1" ]; then
   echo " - Miscellaneous  : " >> ${CHANGES_FILE}
   echo "" >> ${CHANGES_FILE}
 
-  # Now create the md5sums for all the .zip files with one command and send the
-  # output to md5sums.txt. We change into the directory where the .zip files are
-  # located so that the file names that md5sum emits are just the base name
-  # without any path.
+  # Now complete md5sums.txt for all the .zip files. The release zips and
+  # their signed ones are already in there (RomAssembler hashes them while
+  # writing them), only the base KANG is read again. We change into the
+  # directory where the .zip files are located so that the file names that
+  # md5sum emits are just the base name without any path.
   #
   cd ${RELEASE_DIR}
-  md5sum -b *.zip > md5sums.txt
+  touch md5sums.txt
+  for i in *.zip; do
+    grep -q " \*$i\$" md5sums.txt || md5sum -b $i >> md5sums.txt
+  done
   cd - &>/dev/null
 fi
 
@@ -80,8 +80,9 @@ chmod 666 $OUT_DIR/$APK_BASE.zip  &>> $LOG || exit 1
 ORG_DIR=$PWD
 cd $OUT_DIR  &>> $LOG || exit 1
 
-ShowMessage "7za u $OUTDIR/$APK $PNG_ARCHIVE_PATH/*.png"
-7za u $APK_BASE.zip $PNG_ARCHIVE_PATH/*.png  &>> $LOG || exit 1
+# Only the new .png files get written, stored and aligned, the rest is copied as it is
+ShowMessage "ZipRewriter $OUT_DIR/$APK $PNG_ARCHIVE_PATH/*.png"
+BuildTool ZipRewriter $APK_BASE.zip $APK_BASE.zip . $PNG_ARCHIVE_PATH  &>> $LOG || exit 1
 
 ShowMessage "mv $APK_BASE.zip $APK"
 mv $APK_BASE.zip $APK  &>> $LOG || exit 1